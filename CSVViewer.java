@@ -5,17 +5,51 @@ import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
-import java.io.BufferedReader;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
 
 public class CSVViewer extends JFrame {
-    private Map<String, List<Double>> data;
+    private Map<String, DoubleColumn> data;
     private List<String> columnNames;
     private ChartPanel chartPanel;
     private JPanel controlPanel;
@@ -25,6 +59,31 @@ public class CSVViewer extends JFrame {
     private Map<String, Color> variableColors;
     private JLabel statusLabel;
     private JLabel mousePositionLabel;
+    private JMenuItem cancelLoadItem;
+    private JCheckBoxMenuItem followItem;
+    private CsvLoader activeLoader;
+    private CsvLoader loadedSource; // loader of the data on screen, used to follow the file
+    private List<String> headerNames; // every header of the loaded file, including empty columns
+    private DoubleColumn[] headerColumns; // indexed like headerNames
+    private TimeIndex timeIndex; // timestamps of the rows, or null without a time column
+    private String timeColumnName;
+    private final List<JMenu> resampleMenus = new ArrayList<>();
+    private Map<String, JLabel> statsLabels;
+    private Map<String, JComboBox<Aggregation>> aggregationCombos;
+    private JComboBox<Aggregation> globalAggregationCombo;
+    private Map<String, ColumnPyramid> pyramids;
+    private Map<String, ColumnStats> columnStats; // statistics of the raw columns
+    private PagedStore pagedStore; // columns of an out-of-core load, null otherwise
+    private Map<String, PagedColumn> pagedColumns; // data then holds their overviews
+    // Aggregates of out-of-core columns, read on worker threads: the finished
+    // one of each column, and those still being read or that failed
+    private final Map<SeriesCache.Key, Series> pagedAggregates = new HashMap<>();
+    private final Set<SeriesCache.Key> pendingPagedAggregates = new HashSet<>();
+    private final SeriesCache seriesCache = new SeriesCache(
+        Long.getLong(SeriesCache.PROPERTY, SeriesCache.DEFAULT_BUDGET_MB) << 20);
+    private ScheduledExecutorService followExecutor;
+    
+    private static final long FOLLOW_INTERVAL_MS = 1000;
     
     // Enhanced color palette with better visibility
     private static final Color[] COLORS = {
@@ -43,11 +102,11 @@ public class CSVViewer extends JFrame {
     // Chart display options
     private boolean showDataPoints = false;
     private boolean showZeroLine = true;
-    private boolean enableSmoothing = false;
+    private Smoothing smoothing = Smoothing.NONE;
     
     // Data aggregation options
-    private int globalAggregationWindow = 1; // 1 means no aggregation
-    private Map<String, Integer> variableAggregationWindows;
+    private Aggregation globalAggregation = Aggregation.NONE;
+    private Map<String, Aggregation> variableAggregations;
     
     public CSVViewer() {
         data = new HashMap<>();
@@ -56,7 +115,12 @@ public class CSVViewer extends JFrame {
         variableCheckboxes = new HashMap<>();
         derivativeCheckboxes = new HashMap<>();
         variableColors = new HashMap<>();
-        variableAggregationWindows = new HashMap<>();
+        variableAggregations = new HashMap<>();
+        statsLabels = new HashMap<>();
+        aggregationCombos = new HashMap<>();
+        pyramids = new HashMap<>();
+        columnStats = new HashMap<>();
+        pagedColumns = new HashMap<>();
         
         initializeUI();
     }
@@ -95,11 +159,28 @@ public class CSVViewer extends JFrame {
         loadItem.setAccelerator(KeyStroke.getKeyStroke("ctrl O"));
         loadItem.addActionListener(e -> loadCSV());
         
+        cancelLoadItem = new JMenuItem("Cancel Loading");
+        cancelLoadItem.setAccelerator(KeyStroke.getKeyStroke("ESCAPE"));
+        cancelLoadItem.setEnabled(false);
+        cancelLoadItem.addActionListener(e -> cancelLoading());
+        
+        followItem = new JCheckBoxMenuItem("Follow File", false);
+        followItem.setAccelerator(KeyStroke.getKeyStroke("ctrl F"));
+        followItem.addActionListener(e -> {
+            if (followItem.isSelected()) {
+                startFollowing();
+            } else {
+                stopFollowing();
+            }
+        });
+        
         JMenuItem exitItem = new JMenuItem("Exit");
         exitItem.setAccelerator(KeyStroke.getKeyStroke("ctrl Q"));
         exitItem.addActionListener(e -> System.exit(0));
         
         fileMenu.add(loadItem);
+        fileMenu.add(cancelLoadItem);
+        fileMenu.add(followItem);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
         
@@ -126,37 +207,68 @@ public class CSVViewer extends JFrame {
             chartPanel.repaint();
         });
         
-        JCheckBoxMenuItem smoothingItem = new JCheckBoxMenuItem("Enable Smoothing", enableSmoothing);
-        smoothingItem.addActionListener(e -> {
-            enableSmoothing = smoothingItem.isSelected();
-            chartPanel.repaint();
+        // Smoothing submenu: common settings plus any window typed in
+        JMenu smoothingMenu = new JMenu("Smoothing");
+        ButtonGroup smoothingGroup = new ButtonGroup();
+        Map<Smoothing, JRadioButtonMenuItem> smoothingItems = new HashMap<>();
+        JRadioButtonMenuItem customSmoothingItem = new JRadioButtonMenuItem("Custom...");
+        Smoothing.Mode previousSmoothing = null;
+        for (Smoothing option : Smoothing.OPTIONS) {
+            if (previousSmoothing != null && option.getMode() != previousSmoothing) {
+                smoothingMenu.addSeparator();
+            }
+            previousSmoothing = option.getMode();
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(option.toString(), option.equals(smoothing));
+            item.addActionListener(e -> {
+                applySmoothing(option);
+                customSmoothingItem.setText("Custom...");
+            });
+            smoothingGroup.add(item);
+            smoothingItems.put(option, item);
+            smoothingMenu.add(item);
+        }
+        smoothingMenu.addSeparator();
+        customSmoothingItem.addActionListener(e -> {
+            Smoothing custom = askSmoothing();
+            if (custom != null) {
+                applySmoothing(custom);
+            }
+            JRadioButtonMenuItem selected = smoothingItems.get(smoothing);
+            smoothingGroup.setSelected((selected != null ? selected : customSmoothingItem).getModel(), true);
+            customSmoothingItem.setText(selected != null ? "Custom..." : "Custom: " + smoothing + "...");
         });
+        smoothingGroup.add(customSmoothingItem);
+        smoothingMenu.add(customSmoothingItem);
         
         // Data aggregation submenu
         JMenu aggregationMenu = new JMenu("Data Aggregation");
         ButtonGroup aggGroup = new ButtonGroup();
         
-        int[] windowSizes = {1, 2, 5, 10, 25};
-        String[] windowLabels = {"None (1)", "2 Points", "5 Points", "10 Points", "25 Points"};
-        
-        for (int i = 0; i < windowSizes.length; i++) {
-            final int windowSize = windowSizes[i];
-            JRadioButtonMenuItem aggItem = new JRadioButtonMenuItem(windowLabels[i], windowSize == 1);
-            aggItem.addActionListener(e -> {
-                globalAggregationWindow = windowSize;
-                // Reset all variable-specific aggregation to use global
-                variableAggregationWindows.clear();
-                for (String columnName : columnNames) {
-                    variableAggregationWindows.put(columnName, windowSize);
-                }
-                chartPanel.repaint();
-                // Update control panel to reflect changes
-                if (!data.isEmpty()) {
-                    createControls();
-                }
-            });
+        // Time buckets get a submenu per width, enabled while the loaded
+        // file has a time column
+        Aggregation.Mode previousMode = null;
+        JMenu bucketMenu = null;
+        for (Aggregation aggregation : Aggregation.TIMED_OPTIONS) {
+            if (previousMode != null && aggregation.getMode() != previousMode) {
+                aggregationMenu.addSeparator();
+            }
+            previousMode = aggregation.getMode();
+            JRadioButtonMenuItem aggItem = new JRadioButtonMenuItem(aggregation.toString(), aggregation == globalAggregation);
+            aggItem.addActionListener(e -> applyGlobalAggregation(aggregation));
             aggGroup.add(aggItem);
-            aggregationMenu.add(aggItem);
+            if (aggregation.isTimeBucket()) {
+                String bucketLabel = "Resample per " + Aggregation.formatBucket(aggregation.getBucketNanos());
+                if (bucketMenu == null || !bucketMenu.getText().equals(bucketLabel)) {
+                    bucketMenu = new JMenu(bucketLabel);
+                    bucketMenu.setEnabled(false);
+                    resampleMenus.add(bucketMenu);
+                    aggregationMenu.add(bucketMenu);
+                }
+                aggItem.setText(aggregation.getAggregator().toString());
+                bucketMenu.add(aggItem);
+            } else {
+                aggregationMenu.add(aggItem);
+            }
         }
         
         viewMenu.add(resetScalesItem);
@@ -166,7 +278,7 @@ public class CSVViewer extends JFrame {
         viewMenu.addSeparator();
         viewMenu.add(showPointsItem);
         viewMenu.add(showZeroItem);
-        viewMenu.add(smoothingItem);
+        viewMenu.add(smoothingMenu);
         viewMenu.addSeparator();
         viewMenu.add(aggregationMenu);
         
@@ -210,134 +322,394 @@ public class CSVViewer extends JFrame {
     }
     
     private void loadCSV() {
+        if (activeLoader != null) return; // One load at a time
+        
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
-        fileChooser.setFileFilter(new FileNameExtensionFilter("CSV Files", "csv"));
+        fileChooser.setFileFilter(new FileNameExtensionFilter("CSV Files (*.csv, *.csv.gz, *.zip)", "csv", "gz", "zip"));
         
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
             statusLabel.setText("Loading: " + selectedFile.getName());
             
+            CsvLoader loader = new CsvLoader(selectedFile);
+            // Files larger than the memory budget are kept in their column
+            // cache and paged in as the chart needs them
+            boolean paged = PagedStore.shouldPage(selectedFile);
+            if (paged) {
+                loader.setCacheFile(PagedStore.cacheFileFor(selectedFile));
+            }
+            activeLoader = loader;
+            cancelLoadItem.setEnabled(true);
+            stopFollowing();
+            
+            // Chunks are handed over through a queue that both process() and
+            // done() drain, since Swing may deliver process() after done()
+            Queue<CsvLoader.Chunk> loadedChunks = new ConcurrentLinkedQueue<>();
+            long startTime = System.nanoTime();
+            
             SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+                private boolean started;
+                private long bytesRead;
+                private long rowsRead;
+                private PagedStore store; // opened once an out-of-core load completes
+                
                 @Override
                 protected Void doInBackground() throws Exception {
-                    parseCSV(selectedFile);
+                    loader.load(chunk -> {
+                        loadedChunks.add(paged ? chunk.withoutValues() : chunk);
+                        publish();
+                    });
+                    if (paged && !loader.isCancelled()) {
+                        store = PagedStore.open(selectedFile, loader.getCacheFile());
+                        try {
+                            for (int i = 0; i < loader.getColumnNames().size(); i++) {
+                                store.column(i).overview();
+                            }
+                        } catch (IOException e) {
+                            store.close();
+                            throw e;
+                        }
+                    }
                     return null;
                 }
                 
+                @Override
+                protected void process(List<Void> chunks) {
+                    if (drainChunks()) {
+                        statusLabel.setText(formatLoadProgress(selectedFile.getName(), bytesRead, 
+                            loader.getFileSize(), rowsRead, System.nanoTime() - startTime));
+                    }
+                }
+                
                 @Override
                 protected void done() {
+                    activeLoader = null;
+                    cancelLoadItem.setEnabled(false);
                     try {
                         get(); // Check for exceptions
+                        drainChunks();
+                        if (!started) {
+                            beginLoad(loader.getColumnNames(), loader.getTimeColumn());
+                        }
+                        if (paged && store == null) {
+                            // A partial out-of-core load has no column cache to page from
+                            loadedSource = null;
+                            createControls();
+                            chartPanel.repaint();
+                            statusLabel.setText("Loading cancelled: " + selectedFile.getName());
+                            return;
+                        }
+                        if (store != null) {
+                            showPagedColumns(store);
+                        }
+                        finishLoad();
+                        loadedSource = loader;
                         createControls();
                         chartPanel.repaint();
-                        statusLabel.setText("Loaded: " + selectedFile.getName() + 
+                        statusLabel.setText((loader.isCancelled() ? "Loading cancelled, showing partial data: " 
+                            : "Loaded: ") + selectedFile.getName() + 
                             " (" + columnNames.size() + " variables, " + 
-                            getMaxDataPoints() + " points)");
+                            getMaxDataPoints() + " points" + (store != null ? ", out of core" : "") + 
+                            (timeIndex != null && getTimeAxis() == null 
+                                ? ", " + timeColumnName + " not in time order, plotted by row)" : ")"));
+                        if (followItem.isSelected()) {
+                            startFollowing();
+                        }
                     } catch (Exception e) {
+                        loadedSource = null;
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
                         JOptionPane.showMessageDialog(CSVViewer.this, 
-                            "Error loading CSV: " + e.getMessage(), 
+                            "Error loading CSV: " + cause.getMessage(), 
                             "Error", JOptionPane.ERROR_MESSAGE);
                         statusLabel.setText("Error loading file");
                     }
                 }
+                
+                // Appends queued chunks to the live columns; returns true if any arrived
+                private boolean drainChunks() {
+                    CsvLoader.Chunk chunk = loadedChunks.poll();
+                    if (chunk == null) return false;
+                    
+                    if (!started) {
+                        beginLoad(loader.getColumnNames(), loader.getTimeColumn());
+                        started = true;
+                    }
+                    boolean newColumns = false;
+                    for (; chunk != null; chunk = loadedChunks.poll()) {
+                        if (paged) {
+                            mergeChunkStats(chunk);
+                        } else {
+                            newColumns |= appendChunk(chunk);
+                        }
+                        bytesRead = chunk.getEndOffset();
+                        rowsRead += chunk.getRows();
+                    }
+                    if (newColumns) {
+                        createControls();
+                    }
+                    chartPanel.repaint();
+                    return true;
+                }
             };
             worker.execute();
         }
     }
     
-    private void parseCSV(File file) throws IOException {
-        data.clear();
-        columnNames.clear();
+    private void cancelLoading() {
+        if (activeLoader != null) {
+            activeLoader.cancel();
+            statusLabel.setText("Cancelling...");
+        }
+    }
+    
+    // Polls the loaded file for appended rows. Only the new bytes are parsed,
+    // so each update costs time proportional to the rows added since the last one.
+    private void startFollowing() {
+        stopFollowing();
+        if (pagedStore != null) {
+            statusLabel.setText("Follow File: not available for files opened out of core");
+            return;
+        }
+        if (loadedSource == null) {
+            statusLabel.setText("Follow File: load a CSV file first");
+            return;
+        }
         
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line = reader.readLine();
-            if (line == null) {
-                throw new IOException("File is empty");
-            }
-            
-            // Parse header - handle quoted fields and different separators
-            String[] headers = parseCSVLine(line);
-            for (String header : headers) {
-                String trimmedHeader = header.trim().replaceAll("^\"|\"$", ""); // Remove quotes
-                if (!trimmedHeader.isEmpty()) {
-                    columnNames.add(trimmedHeader);
-                    data.put(trimmedHeader, new ArrayList<>());
+        CsvLoader source = loadedSource;
+        followExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "csv-follow");
+            thread.setDaemon(true);
+            return thread;
+        });
+        followExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                CsvLoader.Chunk chunk = source.readAppended();
+                if (chunk != null) {
+                    SwingUtilities.invokeLater(() -> appendFollowedRows(source, chunk));
                 }
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> {
+                    if (loadedSource == source) {
+                        followItem.setSelected(false);
+                        stopFollowing();
+                        statusLabel.setText("Stopped following: " + e.getMessage());
+                    }
+                });
             }
-            
-            if (columnNames.isEmpty()) {
-                throw new IOException("No valid column headers found");
+        }, 0, FOLLOW_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        statusLabel.setText("Following: " + source.getFile().getName());
+    }
+    
+    private void stopFollowing() {
+        if (followExecutor != null) {
+            followExecutor.shutdownNow();
+            followExecutor = null;
+        }
+    }
+    
+    private void appendFollowedRows(CsvLoader source, CsvLoader.Chunk chunk) {
+        if (loadedSource != source || followExecutor == null) return; // Stale update
+        
+        if (appendChunk(chunk)) {
+            createControls();
+        } else {
+            for (String columnName : columnNames) {
+                updateStatsLabel(columnName);
             }
+        }
+        chartPanel.repaint();
+        statusLabel.setText(String.format("Following: %s (+%,d rows, %,d points)", 
+            source.getFile().getName(), chunk.getRows(), getMaxDataPoints()));
+    }
+    
+    private String formatLoadProgress(String fileName, long bytesRead, long totalBytes, 
+                                      long rows, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos / 1e9, 1e-3);
+        double percent = totalBytes > 0 ? 100.0 * bytesRead / totalBytes : 100.0;
+        long etaSeconds = bytesRead > 0 ? (long) (seconds * (totalBytes - bytesRead) / bytesRead) : 0;
+        return String.format("Loading: %s - %.0f%% (%s of %s), %,d rows/s, ETA %d:%02d", 
+            fileName, percent, formatBytes(bytesRead), formatBytes(totalBytes), 
+            (long) (rows / seconds), etaSeconds / 60, etaSeconds % 60);
+    }
+    
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes / 1024.0;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return new DecimalFormat("#0.#").format(value) + " " + units[unit];
+    }
+    
+    // Replaces the current data set with empty columns for the given headers,
+    // and an empty time index if the file has a time column. Columns are only
+    // added to data once they receive their first value.
+    private void beginLoad(List<String> headers, String timeColumn) {
+        closePagedStore();
+        data.clear();
+        columnNames.clear();
+        seriesCache.clear();
+        pyramids.clear();
+        columnStats.clear();
+        chartPanel.resetView();
+        variableColors.clear();
+        variableAggregations.clear();
+        columnNames.addAll(headers);
+        headerNames = headers;
+        headerColumns = new DoubleColumn[headers.size()];
+        for (int i = 0; i < headerColumns.length; i++) {
+            headerColumns[i] = new DoubleColumn();
+        }
+        timeColumnName = timeColumn;
+        timeIndex = timeColumn != null ? new TimeIndex() : null;
+        if (timeIndex == null && globalAggregation.isTimeBucket()) {
+            globalAggregation = Aggregation.NONE;
+        }
+    }
+    
+    // Appends a parsed chunk; returns true if a column received its first values.
+    // Every column takes every row, missing cells included, so that row i
+    // means the same record in all of them.
+    private boolean appendChunk(CsvLoader.Chunk chunk) {
+        appendTimes(chunk);
+        DoubleColumn[] segment = chunk.getColumns();
+        boolean newColumns = false;
+        for (int i = 0; i < headerColumns.length; i++) {
+            if (segment[i].isEmpty()) continue;
             
-            // Parse data rows
-            int rowCount = 0;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().isEmpty()) continue; // Skip empty lines
-                
-                String[] values = parseCSVLine(line);
-                rowCount++;
-                
-                for (int i = 0; i < values.length && i < columnNames.size(); i++) {
-                    String value = values[i].trim().replaceAll("^\"|\"$", "");
-                    if (!value.isEmpty()) {
-                        try {
-                            double numericValue = Double.parseDouble(value);
-                            data.get(columnNames.get(i)).add(numericValue);
-                        } catch (NumberFormatException e) {
-                            // Skip non-numeric values silently
-                        }
-                    }
-                }
+            headerColumns[i].addAll(segment[i]);
+            seriesCache.invalidate(headerNames.get(i));
+            if (chunk.getStats()[i].count() > 0) {
+                columnStats.computeIfAbsent(headerNames.get(i), name -> new ColumnStats()).merge(chunk.getStats()[i]);
             }
-            
-            // Remove columns with no numeric data
-            columnNames.removeIf(columnName -> data.get(columnName).isEmpty());
-            data.entrySet().removeIf(entry -> entry.getValue().isEmpty());
-            
-            if (columnNames.isEmpty()) {
-                throw new IOException("No numeric data found in CSV");
+            // Pyramids grow with the column, so each chunk only adds its own blocks
+            ColumnPyramid pyramid = pyramids.get(headerNames.get(i));
+            if (pyramid == null) {
+                pyramid = new ColumnPyramid(headerColumns[i]);
+                pyramids.put(headerNames.get(i), pyramid);
+            }
+            pyramid.update();
+            String columnName = headerNames.get(i);
+            if (!data.containsKey(columnName) && columnStats.containsKey(columnName)) {
+                // Assign colors to variables and initialize aggregation
+                data.put(columnName, headerColumns[i]);
+                variableColors.put(columnName, COLORS[(data.size() - 1) % COLORS.length]);
+                variableAggregations.put(columnName, globalAggregation);
+                newColumns = true;
             }
         }
         
-        // Assign colors to variables and initialize aggregation windows
-        for (int i = 0; i < columnNames.size(); i++) {
-            String columnName = columnNames.get(i);
-            variableColors.put(columnName, COLORS[i % COLORS.length]);
-            variableAggregationWindows.put(columnName, globalAggregationWindow);
+        // A followed file can fill a column that was pruned as empty at load time
+        if (newColumns && columnNames.size() < data.size()) {
+            columnNames.clear();
+            for (String header : headerNames) {
+                if (data.containsKey(header)) {
+                    columnNames.add(header);
+                }
+            }
         }
+        return newColumns;
     }
     
-    // Enhanced CSV parsing to handle quotes and different separators
-    private String[] parseCSVLine(String line) {
-        List<String> fields = new ArrayList<>();
-        StringBuilder currentField = new StringBuilder();
-        boolean inQuotes = false;
-        
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
+    private void appendTimes(CsvLoader.Chunk chunk) {
+        if (timeIndex != null && chunk.getTimes() != null) {
+            timeIndex.addAll(chunk.getTimes());
+        }
+    }
+    
+    // Out-of-core loads keep only the statistics of each chunk and the
+    // time index, which stays on the heap
+    private void mergeChunkStats(CsvLoader.Chunk chunk) {
+        appendTimes(chunk);
+        ColumnStats[] stats = chunk.getStats();
+        for (int i = 0; i < stats.length; i++) {
+            if (stats[i].count() > 0) {
+                columnStats.computeIfAbsent(headerNames.get(i), name -> new ColumnStats()).merge(stats[i]);
+            }
+        }
+    }
+    
+    // Shows the columns of a completed out-of-core load, with the overview
+    // of each standing in for its values in data
+    private void showPagedColumns(PagedStore store) throws IOException {
+        pagedStore = store;
+        for (int i = 0; i < headerNames.size(); i++) {
+            PagedColumn column = store.column(i);
+            String columnName = headerNames.get(i);
+            if (store.presentCount(i) == 0 || data.containsKey(columnName)) continue;
             
-            if (c == '"') {
-                inQuotes = !inQuotes;
-            } else if (c == ',' && !inQuotes) {
-                fields.add(currentField.toString());
-                currentField.setLength(0);
-            } else {
-                currentField.append(c);
+            pagedColumns.put(columnName, column);
+            data.put(columnName, column.overview().getValues());
+            variableColors.put(columnName, COLORS[(data.size() - 1) % COLORS.length]);
+            variableAggregations.put(columnName, globalAggregation);
+        }
+    }
+    
+    private void closePagedStore() {
+        pagedColumns.clear();
+        pagedAggregates.clear();
+        pendingPagedAggregates.clear();
+        if (pagedStore != null) {
+            try {
+                pagedStore.close();
+            } catch (IOException e) {
+                // Only read from
             }
+            pagedStore = null;
+        }
+    }
+    
+    private void finishLoad() throws IOException {
+        // Remove columns with no numeric data
+        columnNames.removeIf(columnName -> !data.containsKey(columnName));
+        
+        // Release the spare capacity left over from growing the columns
+        data.values().forEach(DoubleColumn::trimToSize);
+        if (timeIndex != null) {
+            timeIndex.trimToSize();
         }
-        fields.add(currentField.toString());
         
-        return fields.toArray(new String[0]);
+        if (columnNames.isEmpty()) {
+            throw new IOException("No numeric data found in CSV");
+        }
+    }
+    
+    // The time axis the chart plots against, or null to plot by row when
+    // there is no time column or its timestamps are missing or out of order
+    private TimeIndex.Axis getTimeAxis() {
+        return timeIndex != null ? timeIndex.axis() : null;
     }
     
     private int getMaxDataPoints() {
-        return data.values().stream().mapToInt(List::size).max().orElse(0);
+        int max = 0;
+        for (String columnName : data.keySet()) {
+            max = Math.max(max, getRawSize(columnName));
+        }
+        return max;
+    }
+    
+    // Number of values in the raw column, which for an out-of-core column
+    // is not the size of its entry in data
+    private int getRawSize(String columnName) {
+        PagedColumn paged = pagedColumns.get(columnName);
+        return paged != null ? paged.size() : data.get(columnName).size();
+    }
+    
+    // Aggregations that apply to the loaded data: time buckets need a time column
+    private Aggregation[] aggregationOptions() {
+        return timeIndex != null ? Aggregation.TIMED_OPTIONS : Aggregation.OPTIONS;
     }
     
     private void createControls() {
+        resampleMenus.forEach(menu -> menu.setEnabled(timeIndex != null));
         controlPanel.removeAll();
+        statsLabels.clear();
+        aggregationCombos.clear();
         scaleSliders.clear();
         variableCheckboxes.clear();
         derivativeCheckboxes.clear();
@@ -366,30 +738,13 @@ public class CSVViewer extends JFrame {
         JPanel aggPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         aggPanel.add(new JLabel("Global Aggregation:"));
         
-        String[] aggOptions = {"None (1)", "2 Points", "5 Points", "10 Points", "25 Points"};
-        int[] aggValues = {1, 2, 5, 10, 25};
-        
-        JComboBox<String> globalAggCombo = new JComboBox<>(aggOptions);
-        for (int i = 0; i < aggValues.length; i++) {
-            if (aggValues[i] == globalAggregationWindow) {
-                globalAggCombo.setSelectedIndex(i);
-                break;
-            }
-        }
-        
-        globalAggCombo.addActionListener(e -> {
-            int selectedIndex = globalAggCombo.getSelectedIndex();
-            globalAggregationWindow = aggValues[selectedIndex];
-            // Update all variables to use the new global setting
-            for (String columnName : columnNames) {
-                variableAggregationWindows.put(columnName, globalAggregationWindow);
-            }
-            chartPanel.repaint();
-            // Recreate controls to update individual combo boxes
-            createControls();
-        });
+        globalAggregationCombo = new JComboBox<>(aggregationOptions());
+        globalAggregationCombo.setMaximumRowCount(16);
+        globalAggregationCombo.setSelectedItem(globalAggregation);
+        globalAggregationCombo.addActionListener(e -> 
+            applyGlobalAggregation((Aggregation) globalAggregationCombo.getSelectedItem()));
         
-        aggPanel.add(globalAggCombo);
+        aggPanel.add(globalAggregationCombo);
         
         globalPanel.add(buttonPanel);
         globalPanel.add(aggPanel);
@@ -427,19 +782,10 @@ public class CSVViewer extends JFrame {
         colorPanel.setBorder(BorderFactory.createLineBorder(Color.BLACK));
         
         // Add statistics with aggregation info
-        List<Double> values = data.get(columnName);
-        List<Double> aggregatedValues = aggregateData(values, variableAggregationWindows.get(columnName));
-        
-        double min = Collections.min(values);
-        double max = Collections.max(values);
-        double avg = values.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
-        
-        DecimalFormat df = new DecimalFormat("#0.##");
-        String statsText = String.format("<html>Original: %d points<br/>Aggregated: %d points<br/>Min: %s, Max: %s, Avg: %s</html>", 
-            values.size(), aggregatedValues.size(), df.format(min), df.format(max), df.format(avg));
-        
-        JLabel statsLabel = new JLabel(statsText);
+        JLabel statsLabel = new JLabel();
         statsLabel.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+        statsLabels.put(columnName, statsLabel);
+        updateStatsLabel(columnName);
         
         headerPanel.add(colorPanel);
         headerPanel.add(new JLabel(" " + columnName));
@@ -479,24 +825,16 @@ public class CSVViewer extends JFrame {
         JPanel individualAggPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         individualAggPanel.add(new JLabel("Aggregation:"));
         
-        String[] aggOptions = {"None (1)", "2 Points", "5 Points", "10 Points", "25 Points"};
-        int[] aggValues = {1, 2, 5, 10, 25};
-        
-        JComboBox<String> aggCombo = new JComboBox<>(aggOptions);
-        int currentWindow = variableAggregationWindows.getOrDefault(columnName, 1);
-        for (int i = 0; i < aggValues.length; i++) {
-            if (aggValues[i] == currentWindow) {
-                aggCombo.setSelectedIndex(i);
-                break;
-            }
-        }
+        JComboBox<Aggregation> aggCombo = new JComboBox<>(aggregationOptions());
+        aggCombo.setMaximumRowCount(16);
+        aggCombo.setSelectedItem(variableAggregations.getOrDefault(columnName, Aggregation.NONE));
+        aggregationCombos.put(columnName, aggCombo);
         
         aggCombo.addActionListener(e -> {
-            int selectedIndex = aggCombo.getSelectedIndex();
-            variableAggregationWindows.put(columnName, aggValues[selectedIndex]);
+            variableAggregations.put(columnName, (Aggregation) aggCombo.getSelectedItem());
             chartPanel.repaint();
             // Update statistics display
-            createVariableControls(columnName);
+            updateStatsLabel(columnName);
         });
         
         individualAggPanel.add(aggCombo);
@@ -518,54 +856,451 @@ public class CSVViewer extends JFrame {
         controlPanel.revalidate();
     }
     
-    private List<Double> calculateDerivative(List<Double> values) {
-        List<Double> derivative = new ArrayList<>();
-        if (values.size() < 2) {
-            return derivative;
+    // Column summaries are maintained as values are appended, so this is O(1)
+    private void updateStatsLabel(String columnName) {
+        JLabel statsLabel = statsLabels.get(columnName);
+        DoubleColumn values = data.get(columnName);
+        if (statsLabel == null || values == null) return;
+        
+        Aggregation aggregation = variableAggregations.getOrDefault(columnName, Aggregation.NONE);
+        int size = values.size();
+        long points = values.presentCount();
+        double min = values.min();
+        double max = values.max();
+        double mean = values.mean();
+        if (pagedColumns.containsKey(columnName)) {
+            // data only holds the overview
+            ColumnStats stats = columnStats.get(columnName);
+            aggregation = getPagedAggregation(columnName);
+            size = getRawSize(columnName);
+            points = stats.count();
+            min = stats.min();
+            max = stats.max();
+            mean = stats.mean();
+        }
+        int aggregatedPoints = aggregation.isTimeBucket() 
+            ? getProcessedSeries(columnName, SeriesCache.Kind.VALUES, Smoothing.NONE).size() 
+            : aggregation.outputSize(size);
+        
+        DecimalFormat df = new DecimalFormat("#0.##");
+        statsLabel.setText(String.format("<html>Original: %d points<br/>Aggregated: %d points<br/>Min: %s, Max: %s, Avg: %s</html>", 
+            points, aggregatedPoints, df.format(min), df.format(max), df.format(mean)));
+    }
+    
+    private static DoubleColumn calculateDerivative(DoubleColumn values) {
+        int n = values.size();
+        if (n < 2) {
+            return new DoubleColumn(0);
         }
+        if (values.hasMissing()) {
+            return calculateDerivativeWithGaps(values);
+        }
+        
+        double[] v = values.array();
+        double[] derivative = new double[n];
         
         // Use improved numerical differentiation
-        for (int i = 0; i < values.size(); i++) {
-            if (i == 0) {
-                // Forward difference for first point
-                derivative.add(values.get(1) - values.get(0));
-            } else if (i == values.size() - 1) {
-                // Backward difference for last point
-                derivative.add(values.get(i) - values.get(i - 1));
+        derivative[0] = v[1] - v[0]; // Forward difference for first point
+        for (int i = 1; i < n - 1; i++) {
+            // Central difference for middle points (more accurate)
+            derivative[i] = (v[i + 1] - v[i - 1]) / 2.0;
+        }
+        derivative[n - 1] = v[n - 1] - v[n - 2]; // Backward difference for last point
+        
+        return new DoubleColumn(derivative, values.validity(), n);
+    }
+    
+    // calculateDerivative for a column with gaps, one run of present rows at a
+    // time: a row with one present neighbour takes the one-sided difference,
+    // a row without any is missing
+    private static DoubleColumn calculateDerivativeWithGaps(DoubleColumn values) {
+        int n = values.size();
+        double[] v = values.array();
+        DoubleColumn derivative = new DoubleColumn(n);
+        for (int start = values.nextPresent(0); start < n; start = values.nextPresent(start)) {
+            while (derivative.size() < start) derivative.addMissing();
+            int end = values.nextMissing(start);
+            if (end - start < 2) {
+                derivative.addMissing();
             } else {
-                // Central difference for middle points (more accurate)
-                derivative.add((values.get(i + 1) - values.get(i - 1)) / 2.0);
+                derivative.add(v[start + 1] - v[start]);
+                for (int i = start + 1; i < end - 1; i++) {
+                    derivative.add((v[i + 1] - v[i - 1]) / 2.0);
+                }
+                derivative.add(v[end - 1] - v[end - 2]);
             }
+            start = end;
         }
-        
+        while (derivative.size() < n) derivative.addMissing();
         return derivative;
     }
     
-    private List<Double> aggregateData(List<Double> data, int windowSize) {
+    private static DoubleColumn aggregateData(DoubleColumn data, int windowSize) {
         if (windowSize <= 1 || data.isEmpty()) {
-            return new ArrayList<>(data);
+            return data;
+        }
+        if (data.hasMissing()) {
+            return aggregateDataWithGaps(data, windowSize);
         }
         
-        List<Double> aggregated = new ArrayList<>();
+        int n = data.size();
+        double[] v = data.array();
+        double[] aggregated = new double[(n + windowSize - 1) / windowSize];
+        int out = 0;
         
-        for (int i = 0; i < data.size(); i += windowSize) {
-            double sum = 0;
-            int count = 0;
+        for (int i = 0; i < n; i += windowSize) {
+            int end = Math.min(i + windowSize, n);
             
             // Average the points in the current window
-            for (int j = i; j < Math.min(i + windowSize, data.size()); j++) {
-                sum += data.get(j);
-                count++;
+            aggregated[out++] = VectorSum.sum(v, i, end) / (end - i);
+        }
+        
+        return new DoubleColumn(aggregated, out);
+    }
+    
+    // aggregateData averaging only the present rows of each window; a window
+    // without any is missing
+    private static DoubleColumn aggregateDataWithGaps(DoubleColumn data, int windowSize) {
+        int n = data.size();
+        double[] v = data.array();
+        DoubleColumn aggregated = new DoubleColumn((n + windowSize - 1) / windowSize);
+        
+        for (int i = 0; i < n; i += windowSize) {
+            int end = Math.min(i + windowSize, n);
+            double sum = 0;
+            int count = 0;
+            for (int start = data.nextPresent(i); start < end; start = data.nextPresent(start)) {
+                int runEnd = Math.min(data.nextMissing(start), end);
+                sum += VectorSum.sum(v, start, runEnd);
+                count += runEnd - start;
+                start = runEnd;
             }
             
             if (count > 0) {
                 aggregated.add(sum / count);
+            } else {
+                aggregated.addMissing();
             }
         }
-        
         return aggregated;
     }
     
+    // Aggregated (and optionally smoothed) series or derivative of a column as
+    // configured for display, served from the cache while nothing has changed
+    private Series getProcessedSeries(String columnName, SeriesCache.Kind kind, Smoothing smoothing) {
+        PagedColumn paged = pagedColumns.get(columnName);
+        if (paged != null) {
+            return getPagedSeries(columnName, paged, kind, smoothing);
+        }
+        
+        DoubleColumn values = data.get(columnName);
+        Aggregation aggregation = variableAggregations.getOrDefault(columnName, Aggregation.NONE);
+        SeriesCache.Key key = new SeriesCache.Key(columnName, aggregation, kind, smoothing);
+        
+        Series series = seriesCache.get(key);
+        if (series == null) {
+            if (!smoothing.isNone()) {
+                SeriesCache.Key sourceKey = new SeriesCache.Key(columnName, aggregation, kind, Smoothing.NONE);
+                Series source = getProcessedSeries(columnName, kind, Smoothing.NONE);
+                series = smooth(sourceKey, source, smoothing, source.getValues().array() == values.array());
+            } else if (kind == SeriesCache.Kind.DERIVATIVE) {
+                Series processed = getProcessedSeries(columnName, SeriesCache.Kind.VALUES, Smoothing.NONE);
+                series = derivativeOf(values, processed, aggregation, timeIndex);
+            } else if (aggregation.getMode() == Aggregation.Mode.AVERAGE && pyramids.containsKey(columnName)
+                    && aggregation.getSize() >= ColumnPyramid.MIN_WINDOW) {
+                series = new Series(pyramids.get(columnName).averages(aggregation.getSize()));
+            } else {
+                series = aggregate(values, aggregation, timeIndex);
+            }
+            boolean sharesSource = series.getValues() == values;
+            if (sharesSource) {
+                // The render threads get a fixed-size view of the growing column and its pyramid
+                DoubleColumn view = new DoubleColumn(values.array(), values.validity(), values.size());
+                ColumnPyramid pyramid = pyramids.get(columnName);
+                series = new Series(view);
+                series.setRangeIndex(pyramid != null ? pyramid.snapshot(view) : null);
+            }
+            series.rangeIndex();
+            seriesCache.put(key, series, sharesSource);
+        }
+        return series;
+    }
+    
+    // getProcessedSeries for an out-of-core column. An aggregation is computed
+    // in one pass over the pages on a worker thread; without one, or until it
+    // is ready, the chart shows the overview, or the raw rows of the detail
+    // window once it is zoomed in far enough. The derivative is taken of the
+    // processed series in either case.
+    private Series getPagedSeries(String columnName, PagedColumn paged, SeriesCache.Kind kind, Smoothing smoothing) {
+        Aggregation aggregation = getPagedAggregation(columnName);
+        Series aggregated = aggregation.isNone() ? null : getPagedAggregate(columnName, paged, aggregation);
+        if (aggregated == null) {
+            aggregation = Aggregation.NONE;
+        }
+        int detail = aggregation.isNone() ? chartPanel.detailStart(paged) : -1;
+        SeriesCache.Key key = new SeriesCache.Key(columnName, aggregation, kind, smoothing, detail);
+        
+        Series series = seriesCache.get(key);
+        if (series == null) {
+            if (!smoothing.isNone()) {
+                SeriesCache.Key sourceKey = new SeriesCache.Key(columnName, aggregation, kind, Smoothing.NONE, detail);
+                series = smooth(sourceKey, getPagedSeries(columnName, paged, kind, Smoothing.NONE), smoothing, false);
+            } else if (kind == SeriesCache.Kind.DERIVATIVE) {
+                Series processed = getPagedSeries(columnName, paged, SeriesCache.Kind.VALUES, Smoothing.NONE);
+                series = processed.withValues(calculateDerivative(processed.getValues()));
+            } else {
+                try {
+                    series = aggregated != null ? aggregated : detail >= 0 ? paged.detail(detail) : paged.overview();
+                } catch (IOException e) {
+                    statusLabel.setText("Error reading " + columnName + ": " + e.getMessage());
+                    series = new Series(new DoubleColumn());
+                }
+            }
+            series.rangeIndex();
+            seriesCache.put(key, series, false);
+        }
+        return series;
+    }
+    
+    // Aggregate of an out-of-core column, or null while a worker reads it;
+    // the chart repaints once it is ready. A failed read is reported in the
+    // status bar and not retried until another file is loaded.
+    private Series getPagedAggregate(String columnName, PagedColumn paged, Aggregation aggregation) {
+        SeriesCache.Key key = new SeriesCache.Key(columnName, aggregation, SeriesCache.Kind.VALUES, Smoothing.NONE);
+        Series series = pagedAggregates.get(key);
+        if (series != null || !pendingPagedAggregates.add(key)) return series;
+        
+        PagedStore store = pagedStore;
+        TimeIndex times = timeIndex;
+        new SwingWorker<Series, Void>() {
+            @Override
+            protected Series doInBackground() throws IOException {
+                Series aggregate = paged.aggregate(aggregation, times);
+                aggregate.rangeIndex();
+                return aggregate;
+            }
+            
+            @Override
+            protected void done() {
+                if (pagedStore != store) return; // Another file was loaded meanwhile
+                try {
+                    Series aggregate = get();
+                    pendingPagedAggregates.remove(key);
+                    pagedAggregates.keySet().removeIf(other -> other.column.equals(columnName));
+                    pagedAggregates.put(key, aggregate);
+                    chartPanel.repaint();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    statusLabel.setText("Error reading " + columnName + ": " + e.getCause().getMessage());
+                }
+            }
+        }.execute();
+        return null;
+    }
+    
+    // Smooths a cached series. Rolling windows read the prefix sums of the
+    // source series, built the first time and kept with it in the cache, so
+    // trying another window costs one pass over the points, not one per
+    // point in the window.
+    private Series smooth(SeriesCache.Key sourceKey, Series source, Smoothing smoothing, boolean sharesSource) {
+        boolean indexed = source.hasPrefixSums();
+        Series smoothed = smoothing.apply(source);
+        if (!indexed && source.hasPrefixSums()) {
+            seriesCache.put(sourceKey, source, sharesSource);
+        }
+        return smoothed;
+    }
+    
+    // Aggregation applied to an out-of-core column: the selected one, or none
+    // if its output would take more than an eighth of the memory budget
+    private Aggregation getPagedAggregation(String columnName) {
+        Aggregation aggregation = variableAggregations.getOrDefault(columnName, Aggregation.NONE);
+        long maxPoints = PagedStore.budgetBytes() / 8 / Double.BYTES;
+        return pagedColumns.get(columnName).fits(aggregation, timeIndex, maxPoints) ? aggregation : Aggregation.NONE;
+    }
+    
+    // Time buckets need the time index of the rows; without one the values
+    // are left as they are
+    private static Series aggregate(DoubleColumn values, Aggregation aggregation, TimeIndex times) {
+        switch (aggregation.getMode()) {
+            case LTTB: return downsampleLttb(values, aggregation.getSize());
+            case MIN_MAX: return downsampleMinMax(values, aggregation.getSize());
+            case TIME_BUCKET: return times != null ? Resampler.resample(times, values, aggregation) : new Series(values);
+            default: return new Series(aggregateData(values, aggregation.getSize()));
+        }
+    }
+    
+    // Derivative shown next to a processed series. Averaged and resampled
+    // data is differentiated after aggregation; for shape-preserving modes
+    // the raw derivative is downsampled the same way so its spikes survive too.
+    private static Series derivativeOf(DoubleColumn values, Series processed, Aggregation aggregation, 
+                                       TimeIndex times) {
+        return aggregation.preservesShape() 
+            ? aggregate(calculateDerivative(values), aggregation, times) 
+            : processed.withValues(calculateDerivative(processed.getValues()));
+    }
+    
+    // Runs a downsampling on the present values alone, packed together, and
+    // maps the points it keeps back to the rows they came from
+    private static Series onPresentRows(DoubleColumn data, Function<DoubleColumn, Series> downsampling) {
+        int[] rows = new int[data.presentCount()];
+        double[] packed = new double[rows.length];
+        int count = 0;
+        for (int start = data.nextPresent(0); start < data.size(); start = data.nextPresent(start)) {
+            int end = data.nextMissing(start);
+            System.arraycopy(data.array(), start, packed, count, end - start);
+            for (int i = start; i < end; i++) {
+                rows[count++] = i;
+            }
+            start = end;
+        }
+        
+        Series sampled = downsampling.apply(new DoubleColumn(packed, count));
+        int[] sampledRows = new int[sampled.size()];
+        for (int i = 0; i < sampledRows.length; i++) {
+            sampledRows[i] = rows[sampled.row(i)];
+        }
+        return new Series(sampled.getValues(), sampledRows, data.size());
+    }
+    
+    // Largest-Triangle-Three-Buckets: keeps the first and last point and, from
+    // each of the threshold - 2 buckets in between, the point that forms the
+    // largest triangle with the previously kept point and the average of the
+    // next bucket. A single linear pass over the primitive array.
+    private static Series downsampleLttb(DoubleColumn data, int threshold) {
+        int n = data.size();
+        if (threshold >= n || threshold < 3) {
+            return new Series(data);
+        }
+        if (data.hasMissing()) {
+            return onPresentRows(data, present -> downsampleLttb(present, threshold));
+        }
+        
+        double[] v = data.array();
+        double[] sampled = new double[threshold];
+        int[] rows = new int[threshold];
+        double every = (double) (n - 2) / (threshold - 2);
+        
+        int count = 0;
+        int previous = 0;
+        sampled[count] = v[0];
+        rows[count++] = 0;
+        
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average point of the next bucket (the last point for the final bucket)
+            int averageStart = (int) ((bucket + 1) * every) + 1;
+            int averageEnd = Math.min((int) ((bucket + 2) * every) + 1, n);
+            double averageX = (averageStart + averageEnd - 1) / 2.0;
+            double averageY = 0;
+            for (int j = averageStart; j < averageEnd; j++) {
+                averageY += v[j];
+            }
+            averageY /= averageEnd - averageStart;
+            
+            int rangeStart = (int) (bucket * every) + 1;
+            int rangeEnd = (int) ((bucket + 1) * every) + 1;
+            double previousY = v[previous];
+            double maxArea = -1;
+            int selected = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((previous - averageX) * (v[j] - previousY) 
+                    - (previous - j) * (averageY - previousY));
+                if (area > maxArea) {
+                    maxArea = area;
+                    selected = j;
+                }
+            }
+            
+            sampled[count] = v[selected];
+            rows[count++] = selected;
+            previous = selected;
+        }
+        
+        sampled[count] = v[n - 1];
+        rows[count++] = n - 1;
+        return new Series(new DoubleColumn(sampled, count), rows, n);
+    }
+    
+    // Keeps the minimum and maximum of each of threshold / 2 equal buckets, in
+    // row order, so every excursion of the raw series stays visible
+    private static Series downsampleMinMax(DoubleColumn data, int threshold) {
+        int n = data.size();
+        int buckets = threshold / 2;
+        if (threshold >= n || buckets < 1) {
+            return new Series(data);
+        }
+        if (data.hasMissing()) {
+            return onPresentRows(data, present -> downsampleMinMax(present, threshold));
+        }
+        
+        double[] v = data.array();
+        double[] sampled = new double[2 * buckets];
+        int[] rows = new int[2 * buckets];
+        int count = 0;
+        
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            int start = (int) ((long) n * bucket / buckets);
+            int end = (int) ((long) n * (bucket + 1) / buckets);
+            int minIndex = start;
+            int maxIndex = start;
+            for (int j = start + 1; j < end; j++) {
+                if (v[j] < v[minIndex]) minIndex = j;
+                if (v[j] > v[maxIndex]) maxIndex = j;
+            }
+            
+            int lower = Math.min(minIndex, maxIndex);
+            int upper = Math.max(minIndex, maxIndex);
+            sampled[count] = v[lower];
+            rows[count++] = lower;
+            if (upper != lower) {
+                sampled[count] = v[upper];
+                rows[count++] = upper;
+            }
+        }
+        return new Series(new DoubleColumn(sampled, count), rows, n);
+    }
+    
+    // Switches every variable to the given aggregation. The existing controls
+    // are updated in place; with the pyramid index the repaint that follows
+    // costs time proportional to the aggregated output, not the raw data.
+    private void applyGlobalAggregation(Aggregation aggregation) {
+        globalAggregation = aggregation;
+        for (String columnName : columnNames) {
+            variableAggregations.put(columnName, aggregation);
+            JComboBox<Aggregation> combo = aggregationCombos.get(columnName);
+            if (combo != null && !aggregation.equals(combo.getSelectedItem())) {
+                combo.setSelectedItem(aggregation);
+            }
+            updateStatsLabel(columnName);
+        }
+        if (globalAggregationCombo != null && !aggregation.equals(globalAggregationCombo.getSelectedItem())) {
+            globalAggregationCombo.setSelectedItem(aggregation);
+        }
+        chartPanel.repaint();
+    }
+    
+    private void applySmoothing(Smoothing newSmoothing) {
+        smoothing = newSmoothing;
+        chartPanel.repaint();
+    }
+    
+    // Asks for a smoothing setting such as mean:50; null if cancelled
+    private Smoothing askSmoothing() {
+        String spec = smoothing.spec();
+        while (true) {
+            spec = (String) JOptionPane.showInputDialog(this, 
+                "Window in points: mean:N or stddev:N for a rolling mean or standard deviation,\n" 
+                + "ewma:N for an exponentially weighted moving average with span N, or none", 
+                "Custom Smoothing", JOptionPane.QUESTION_MESSAGE, null, null, spec);
+            if (spec == null) return null;
+            Smoothing parsed = Smoothing.parse(spec);
+            if (parsed != null) return parsed;
+            JOptionPane.showMessageDialog(this, "Invalid smoothing: " + spec, 
+                "Custom Smoothing", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
     private void resetAllScales() {
         scaleSliders.values().forEach(slider -> slider.setValue(100));
         chartPanel.repaint();
@@ -591,54 +1326,130 @@ public class CSVViewer extends JFrame {
         fileChooser.setFileFilter(new FileNameExtensionFilter("CSV Files", "csv"));
         fileChooser.setSelectedFile(new File("exported_data.csv"));
         
+        JComboBox<ExportContent> contentCombo = new JComboBox<>(ExportContent.values());
+        JPanel contentPanel = new JPanel(new BorderLayout(0, 5));
+        contentPanel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 0));
+        contentPanel.add(new JLabel("Export:"), BorderLayout.NORTH);
+        contentPanel.add(contentCombo, BorderLayout.CENTER);
+        fileChooser.setAccessory(contentPanel);
+        
         int result = fileChooser.showSaveDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
-            if (!file.getName().toLowerCase().endsWith(".csv")) {
-                file = new File(file.getAbsolutePath() + ".csv");
-            }
+            File selectedFile = fileChooser.getSelectedFile();
+            File file = selectedFile.getName().toLowerCase().endsWith(".csv") 
+                ? selectedFile : new File(selectedFile.getAbsolutePath() + ".csv");
             
+            List<String> headers = new ArrayList<>();
+            ColumnSource[] columns;
             try {
-                exportDataToFile(file);
-                statusLabel.setText("Data exported to: " + file.getName());
-                JOptionPane.showMessageDialog(this, "Data exported successfully!", "Export", JOptionPane.INFORMATION_MESSAGE);
+                columns = exportColumns((ExportContent) contentCombo.getSelectedItem(), headers);
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(this, "Error exporting data: " + e.getMessage(), 
                     "Export Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            TimeIndex times = exportTimes((ExportContent) contentCombo.getSelectedItem(), columns);
+            if (times != null) {
+                headers.add(0, timeColumnName);
             }
-        }
-    }
-    
-    private void exportDataToFile(File file) throws IOException {
-        List<String> visibleColumns = getVisibleColumnNames();
-        if (visibleColumns.isEmpty()) {
-            throw new IOException("No visible variables to export");
-        }
-        
-        try (java.io.PrintWriter writer = new java.io.PrintWriter(file)) {
-            // Write header
-            writer.println(String.join(",", visibleColumns));
-            
-            // Find maximum data length
-            int maxLength = visibleColumns.stream()
-                .mapToInt(col -> data.get(col).size())
-                .max().orElse(0);
             
-            // Write data rows
-            for (int i = 0; i < maxLength; i++) {
-                String[] row = new String[visibleColumns.size()];
-                for (int j = 0; j < visibleColumns.size(); j++) {
-                    String col = visibleColumns.get(j);
-                    List<Double> values = data.get(col);
-                    if (i < values.size()) {
-                        row[j] = values.get(i).toString();
-                    } else {
-                        row[j] = "";
+            // Formatting and writing run off the EDT
+            statusLabel.setText("Exporting: " + file.getName());
+            long startTime = System.nanoTime();
+            SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws Exception {
+                    CsvExporter.write(file, headers, times, columns);
+                    return null;
+                }
+                
+                @Override
+                protected void done() {
+                    try {
+                        get();
+                        statusLabel.setText(String.format("Data exported to: %s (%.1f s)", 
+                            file.getName(), (System.nanoTime() - startTime) / 1e9));
+                        JOptionPane.showMessageDialog(CSVViewer.this, "Data exported successfully!", 
+                            "Export", JOptionPane.INFORMATION_MESSAGE);
+                    } catch (Exception e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        statusLabel.setText("Export failed");
+                        JOptionPane.showMessageDialog(CSVViewer.this, "Error exporting data: " + cause.getMessage(), 
+                            "Export Error", JOptionPane.ERROR_MESSAGE);
                     }
                 }
-                writer.println(String.join(",", row));
+            };
+            worker.execute();
+        }
+    }
+    
+    // Columns of the visible variables for the chosen export content, with
+    // their headers added to headers. Each is a fixed-size view, so rows
+    // appended while following the file do not reach a running export.
+    // Raw out-of-core columns are read back from their pages as they are
+    // written.
+    private ColumnSource[] exportColumns(ExportContent content, List<String> headers) throws IOException {
+        List<String> visibleColumns = getVisibleColumnNames();
+        if (visibleColumns.isEmpty()) {
+            throw new IOException("No visible variables to export");
+        }
+        
+        ColumnSource[] columns = new ColumnSource[visibleColumns.size()];
+        for (int j = 0; j < columns.length; j++) {
+            String columnName = visibleColumns.get(j);
+            PagedColumn paged = pagedColumns.get(columnName);
+            if (paged != null && (content == ExportContent.RAW 
+                    || content == ExportContent.AGGREGATED && getPagedAggregation(columnName).isNone())) {
+                headers.add(columnName);
+                columns[j] = paged;
+                continue;
+            }
+            DoubleColumn values;
+            switch (content) {
+                case AGGREGATED:
+                    values = getProcessedSeries(columnName, SeriesCache.Kind.VALUES, Smoothing.NONE).getValues();
+                    break;
+                case SMOOTHED:
+                    values = getProcessedSeries(columnName, SeriesCache.Kind.VALUES, smoothing).getValues();
+                    break;
+                case DERIVATIVE:
+                    values = getProcessedSeries(columnName, SeriesCache.Kind.DERIVATIVE, smoothing).getValues();
+                    columnName += " (derivative)";
+                    break;
+                default:
+                    values = data.get(columnName);
+            }
+            headers.add(columnName);
+            columns[j] = ColumnSource.of(new DoubleColumn(values.array(), values.validity(), values.size()));
+        }
+        return columns;
+    }
+    
+    // Timestamps to export alongside columns: the rows' own, as a fixed-size
+    // view, or the bucket starts if every column was resampled into the same
+    // buckets. Null if there is no time column or the columns have neither
+    // a value per row nor one per bucket.
+    private TimeIndex exportTimes(ExportContent content, ColumnSource[] columns) {
+        if (timeIndex == null) return null;
+        TimeIndex times = timeIndex.view();
+        if (content != ExportContent.RAW) {
+            long bucketNanos = -1;
+            for (String columnName : getVisibleColumnNames()) {
+                Aggregation aggregation = pagedColumns.containsKey(columnName) 
+                    ? getPagedAggregation(columnName) 
+                    : variableAggregations.getOrDefault(columnName, Aggregation.NONE);
+                long bucket = aggregation.isTimeBucket() ? aggregation.getBucketNanos() : 0;
+                if (bucketNanos >= 0 && bucket != bucketNanos) return null;
+                bucketNanos = bucket;
             }
+            if (bucketNanos > 0) {
+                times = Resampler.bucketStarts(times, bucketNanos);
+            }
+        }
+        for (ColumnSource column : columns) {
+            if (column.size() != times.size()) return null;
         }
+        return times;
     }
     
     private List<String> getVisibleColumnNames() {
@@ -653,45 +1464,48 @@ public class CSVViewer extends JFrame {
     }
     
     private void showVariableAnalysis(String variableName) {
-        List<Double> originalValues = data.get(variableName);
+        DoubleColumn originalValues = data.get(variableName);
         if (originalValues.isEmpty()) return;
         
         // Get aggregated values for analysis
-        int aggWindow = variableAggregationWindows.getOrDefault(variableName, 1);
-        List<Double> values = aggregateData(originalValues, aggWindow);
-        
-        // Calculate statistics
-        double min = Collections.min(values);
-        double max = Collections.max(values);
-        double sum = values.stream().mapToDouble(Double::doubleValue).sum();
-        double mean = sum / values.size();
-        
-        // Calculate standard deviation
-        double variance = values.stream()
-            .mapToDouble(x -> Math.pow(x - mean, 2))
-            .average().orElse(0.0);
-        double stdDev = Math.sqrt(variance);
-        
-        // Calculate derivative statistics
-        List<Double> derivative = calculateDerivative(values);
-        double derivMean = 0, derivStdDev = 0;
-        if (!derivative.isEmpty()) {
-            final double finalDerivMean = derivative.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
-            derivMean = finalDerivMean;
-            double derivVariance = derivative.stream()
-                .mapToDouble(x -> Math.pow(x - finalDerivMean, 2))
-                .average().orElse(0.0);
-            derivStdDev = Math.sqrt(derivVariance);
+        Aggregation aggregation = variableAggregations.getOrDefault(variableName, Aggregation.NONE);
+        DoubleColumn values = getProcessedSeries(variableName, SeriesCache.Kind.VALUES, Smoothing.NONE).getValues();
+        int originalSize = originalValues.size();
+        boolean raw = values.array() == originalValues.array(); // Unprocessed series are views of the column
+        if (pagedColumns.containsKey(variableName)) {
+            // Without an aggregation the processed series is only an overview
+            aggregation = getPagedAggregation(variableName);
+            originalSize = getRawSize(variableName);
+            raw = aggregation.isNone();
+        }
+        int processedSize = raw ? originalSize : values.size();
+        
+        // Calculate statistics in one pass; the raw column's are kept up to date while loading
+        ColumnStats stats = raw ? columnStats.get(variableName) : ColumnStats.of(values);
+        double min = stats.min();
+        double max = stats.max();
+        double mean = stats.mean();
+        double stdDev = Math.sqrt(stats.variance());
+        
+        // Shape-preserving modes show the downsampled raw derivative rather
+        // than the derivative of the processed values
+        double derivMean = stats.derivativeMean();
+        double derivStdDev = Math.sqrt(stats.derivativeVariance());
+        if (aggregation.preservesShape()) {
+            ColumnStats derivativeStats = ColumnStats.of(
+                getProcessedSeries(variableName, SeriesCache.Kind.DERIVATIVE, Smoothing.NONE).getValues());
+            derivMean = derivativeStats.mean();
+            derivStdDev = Math.sqrt(derivativeStats.variance());
         }
         
         // Find peaks and valleys (local extrema)
-        List<Integer> peaks = findPeaks(values);
-        List<Integer> valleys = findValleys(values);
+        long peaks = stats.peaks();
+        long valleys = stats.valleys();
         
         DecimalFormat df = new DecimalFormat("#0.####");
         
-        String aggregationInfo = aggWindow > 1 ? 
-            String.format("Data Aggregation: %d-point averaging applied\n", aggWindow) : 
+        String aggregationInfo = !aggregation.isNone() ? 
+            String.format("Data Aggregation: %s applied\n", aggregation.describe()) : 
             "Data Aggregation: None (original data)\n";
         
         String analysis = String.format(
@@ -704,7 +1518,8 @@ public class CSVViewer extends JFrame {
             "• Maximum: %s\n" +
             "• Mean: %s\n" +
             "• Std Deviation: %s\n" +
-            "• Range: %s\n\n" +
+            "• Range: %s\n" +
+            "• Percentiles: p50 %s, p95 %s, p99 %s\n\n" +
             "Derivative Statistics:\n" +
             "• Mean Rate of Change: %s\n" +
             "• Std Dev of Change: %s\n\n" +
@@ -714,23 +1529,28 @@ public class CSVViewer extends JFrame {
             "• Trend: %s\n\n" +
             "Data Quality:\n" +
             "• Noise Reduction: %s\n" +
-            "• Effective Smoothing: %s",
+            "• Effective Smoothing: %s\n" +
+            "• Display Smoothing: %s",
             variableName,
             aggregationInfo,
-            originalValues.size(),
-            values.size(),
+            originalSize,
+            processedSize,
             df.format(min),
             df.format(max),
             df.format(mean),
             df.format(stdDev),
             df.format(max - min),
+            formatQuantile(stats, 0.50, df),
+            formatQuantile(stats, 0.95, df),
+            formatQuantile(stats, 0.99, df),
             df.format(derivMean),
             df.format(derivStdDev),
-            peaks.size(),
-            valleys.size(),
-            getTrendDescription(derivative),
-            getNoiseReductionDescription(aggWindow),
-            getSmoothingEffectiveness(originalValues, values)
+            peaks,
+            valleys,
+            getTrendDescription(processedSize < 2, derivMean),
+            getNoiseReductionDescription(aggregation),
+            getSmoothingEffectiveness(originalSize, processedSize, aggregation),
+            smoothing.describe()
         );
         
         JTextArea textArea = new JTextArea(analysis);
@@ -744,7 +1564,20 @@ public class CSVViewer extends JFrame {
             "Variable Analysis - " + variableName, JOptionPane.INFORMATION_MESSAGE);
     }
     
-    private String getNoiseReductionDescription(int windowSize) {
+    // Estimated from the column's quantile sketch, so it costs no pass over the values
+    private static String formatQuantile(ColumnStats stats, double q, DecimalFormat df) {
+        double value = stats.quantile(q);
+        return Double.isNaN(value) ? "n/a" : df.format(value);
+    }
+    
+    private String getNoiseReductionDescription(Aggregation aggregation) {
+        if (aggregation.preservesShape()) {
+            return "None (shape-preserving downsampling)";
+        }
+        if (aggregation.isTimeBucket()) {
+            return String.format("Time buckets (%s)", aggregation.describe());
+        }
+        int windowSize = aggregation.getSize();
         switch (windowSize) {
             case 1: return "None (original data)";
             case 2: return "Minimal (2-point averaging)";
@@ -755,12 +1588,16 @@ public class CSVViewer extends JFrame {
         }
     }
     
-    private String getSmoothingEffectiveness(List<Double> original, List<Double> processed) {
-        if (original.size() == processed.size()) {
+    private String getSmoothingEffectiveness(int originalSize, int processedSize, 
+                                             Aggregation aggregation) {
+        if (originalSize == processedSize) {
             return "No aggregation applied";
         }
+        if (aggregation.preservesShape()) {
+            return "None (peaks and valleys kept)";
+        }
         
-        double reductionRatio = (double) processed.size() / original.size();
+        double reductionRatio = (double) processedSize / originalSize;
         if (reductionRatio > 0.8) {
             return "Light smoothing effect";
         } else if (reductionRatio > 0.5) {
@@ -772,30 +1609,9 @@ public class CSVViewer extends JFrame {
         }
     }
     
-    private List<Integer> findPeaks(List<Double> values) {
-        List<Integer> peaks = new ArrayList<>();
-        for (int i = 1; i < values.size() - 1; i++) {
-            if (values.get(i) > values.get(i - 1) && values.get(i) > values.get(i + 1)) {
-                peaks.add(i);
-            }
-        }
-        return peaks;
-    }
-    
-    private List<Integer> findValleys(List<Double> values) {
-        List<Integer> valleys = new ArrayList<>();
-        for (int i = 1; i < values.size() - 1; i++) {
-            if (values.get(i) < values.get(i - 1) && values.get(i) < values.get(i + 1)) {
-                valleys.add(i);
-            }
-        }
-        return valleys;
-    }
-    
-    private String getTrendDescription(List<Double> derivative) {
-        if (derivative.isEmpty()) return "No trend data";
+    private String getTrendDescription(boolean noDerivative, double avgChange) {
+        if (noDerivative) return "No trend data";
         
-        double avgChange = derivative.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
         double threshold = 0.001; // Adjust based on your data scale
         
         if (Math.abs(avgChange) < threshold) {
@@ -808,7 +1624,24 @@ public class CSVViewer extends JFrame {
     }
     
     private class ChartPanel extends JPanel {
-        private Point mousePos = new Point();
+        private Point mousePos; // null while the mouse is outside the panel
+        
+        private final Layer backgroundLayer = new Layer();
+        private final Map<String, Layer> seriesLayers = new HashMap<>();
+        private final Layer seriesComposite = new Layer(); // all series layers, in order
+        
+        // Visible part of the x-axis as fractions of the full range
+        private double viewStart = 0;
+        private double viewEnd = 1;
+        
+        // Current mouse drag: a rubber band selection or a pan
+        private Point dragStart;
+        private Point dragEnd;
+        private boolean panning;
+        private double panViewStart;
+        
+        // Renders series layers off the event thread, created on first use
+        private ExecutorService renderExecutor;
         
         public ChartPanel() {
             // Add mouse listeners for interaction
@@ -817,6 +1650,7 @@ public class CSVViewer extends JFrame {
                 public void mouseMoved(MouseEvent e) {
                     mousePos = e.getPoint();
                     updateMousePosition(e.getPoint());
+                    repaint();
                 }
             });
             
@@ -825,28 +1659,134 @@ public class CSVViewer extends JFrame {
                 public void mouseClicked(MouseEvent e) {
                     if (e.getClickCount() == 2) {
                         resetAllScales();
+                        resetView();
                     }
                 }
+                
+                @Override
+                public void mouseExited(MouseEvent e) {
+                    mousePos = null;
+                    repaint();
+                }
             });
+            
+            // Left drag selects a range to zoom into, right/middle or shift
+            // drag pans, the wheel zooms around the mouse
+            MouseAdapter zoomHandler = new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    if (data.isEmpty() || !isInPlotArea(e.getPoint())) return;
+                    dragStart = e.getPoint();
+                    dragEnd = e.getPoint();
+                    panning = !SwingUtilities.isLeftMouseButton(e) || e.isShiftDown();
+                    panViewStart = viewStart;
+                }
+                
+                @Override
+                public void mouseDragged(MouseEvent e) {
+                    if (dragStart == null) return;
+                    dragEnd = e.getPoint();
+                    mousePos = e.getPoint();
+                    if (panning) {
+                        int margin = 50;
+                        double span = viewEnd - viewStart;
+                        double shift = (dragStart.x - dragEnd.x) * span / Math.max(1, getWidth() - 2 * margin);
+                        setView(panViewStart + shift, panViewStart + shift + span);
+                    } else {
+                        repaint();
+                    }
+                }
+                
+                @Override
+                public void mouseReleased(MouseEvent e) {
+                    if (dragStart == null) return;
+                    if (!panning && Math.abs(e.getX() - dragStart.x) >= 5) {
+                        double start = positionAt(Math.min(dragStart.x, e.getX()));
+                        double end = positionAt(Math.max(dragStart.x, e.getX()));
+                        setView(start, end);
+                    }
+                    dragStart = null;
+                    dragEnd = null;
+                    repaint();
+                }
+                
+                @Override
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    if (data.isEmpty()) return;
+                    double anchor = positionAt(e.getX());
+                    double factor = Math.pow(1.25, e.getPreciseWheelRotation());
+                    setView(anchor - (anchor - viewStart) * factor, anchor + (viewEnd - anchor) * factor);
+                }
+            };
+            addMouseListener(zoomHandler);
+            addMouseMotionListener(zoomHandler);
+            addMouseWheelListener(zoomHandler);
+        }
+        
+        // First row of the detail window of an out-of-core column for the
+        // current view, or -1 while the view is too wide for one
+        int detailStart(PagedColumn column) {
+            TimeIndex.Axis axis = getTimeAxis();
+            return axis != null 
+                ? column.detailStart(axis.rowPositionAt(viewStart), axis.rowPositionAt(viewEnd)) 
+                : column.detailStart(viewStart, viewEnd);
+        }
+        
+        // Shows the whole x-range again
+        void resetView() {
+            viewStart = 0;
+            viewEnd = 1;
+            repaint();
+        }
+        
+        // Moves the visible x-range, keeping it inside the data and at least a
+        // few points of the longest series wide
+        private void setView(double start, double end) {
+            double minSpan = Math.min(1, 4.0 / Math.max(1, getMaxDataPoints() - 1));
+            double span = Math.max(minSpan, Math.min(1, end - start));
+            start = Math.max(0, Math.min(start, 1 - span));
+            viewStart = start;
+            viewEnd = Math.min(1, start + span);
+            repaint();
+        }
+        
+        private boolean isZoomed() {
+            return viewStart > 0 || viewEnd < 1;
+        }
+        
+        private boolean isInPlotArea(Point point) {
+            int margin = 50;
+            return point.x >= margin && point.x <= getWidth() - margin &&
+                point.y >= margin && point.y <= getHeight() - margin;
+        }
+        
+        // Position along the full x-range shown at horizontal pixel x
+        private double positionAt(int x) {
+            int margin = 50;
+            int plotWidth = Math.max(1, getWidth() - 2 * margin);
+            double relativeX = Math.max(0, Math.min(1, (double) (x - margin) / plotWidth));
+            return viewStart + relativeX * (viewEnd - viewStart);
         }
         
         private void updateMousePosition(Point point) {
             if (data.isEmpty()) return;
             
-            int margin = 50;
-            int plotWidth = getWidth() - 2 * margin;
-            int plotHeight = getHeight() - 2 * margin;
-            
-            if (point.x >= margin && point.x <= getWidth() - margin &&
-                point.y >= margin && point.y <= getHeight() - margin) {
+            if (isInPlotArea(point)) {
+                double position = positionAt(point.x);
+                TimeIndex.Axis axis = getTimeAxis();
+                if (axis != null) {
+                    long time = axis.timeAt(position);
+                    mousePositionLabel.setText(String.format("Mouse: %s=%s, Index=%d", 
+                        timeColumnName, TimestampParser.format(time), axis.rowNearest(time)));
+                    return;
+                }
                 
                 // Calculate approximate data index
-                double relativeX = (double)(point.x - margin) / plotWidth;
                 int maxPoints = getMaxDataPoints();
-                int dataIndex = (int)(relativeX * (maxPoints - 1));
+                int dataIndex = (int)(position * (maxPoints - 1));
                 
-                mousePositionLabel.setText(String.format("Mouse: X=%.2f, Index=%d", 
-                    relativeX * 100, dataIndex));
+                mousePositionLabel.setText(String.format("Mouse: X=%.2f, Index=%d",
+                    position * 100, dataIndex));
             } else {
                 mousePositionLabel.setText("Mouse: Outside plot area");
             }
@@ -860,6 +1800,9 @@ public class CSVViewer extends JFrame {
             g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
             
             if (data.isEmpty()) {
+                seriesLayers.values().forEach(Layer::discard);
+                seriesLayers.clear();
+                seriesComposite.clear();
                 drawEmptyState(g2d);
                 g2d.dispose();
                 return;
@@ -870,57 +1813,119 @@ public class CSVViewer extends JFrame {
             int margin = 50;
             int plotWidth = width - 2 * margin;
             int plotHeight = height - 2 * margin;
+            TimeIndex.Axis timeAxis = getTimeAxis();
             
-            // Draw background
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(margin, margin, plotWidth, plotHeight);
-            
-            // Draw grid
-            drawGrid(g2d, width, height, margin, plotWidth, plotHeight);
-            
-            // Draw axes
-            drawAxes(g2d, width, height, margin);
-            
-            // Draw zero line if enabled
-            if (showZeroLine) {
-                drawZeroLine(g2d, width, height, margin, plotWidth, plotHeight);
-            }
+            // Background, grid, axes and zero line only change with the size,
+            // the zoom, the time axis and the zero line setting
+            backgroundLayer.paint(g2d, new Rectangle(0, 0, width, height), 
+                Arrays.asList(showZeroLine, viewStart, viewEnd, getMaxDataPoints(), timeAxis), layer -> {
+                    layer.setColor(getBackground());
+                    layer.fillRect(0, 0, width, height);
+                    
+                    // Draw background
+                    layer.setColor(Color.WHITE);
+                    layer.fillRect(margin, margin, plotWidth, plotHeight);
+                    
+                    // Draw grid
+                    drawGrid(layer, width, height, margin, plotWidth, plotHeight);
+                    
+                    // Draw axes
+                    drawAxes(layer, width, height, margin);
+                    
+                    // Draw zero line if enabled
+                    if (showZeroLine) {
+                        drawZeroLine(layer, width, height, margin, plotWidth, plotHeight);
+                    }
+                });
             
             // Find visible variables
             List<String> visibleVariables = getVisibleVariables();
+            seriesLayers.entrySet().removeIf(entry -> {
+                boolean hidden = !visibleVariables.contains(entry.getKey());
+                if (hidden) entry.getValue().discard();
+                return hidden;
+            });
             if (visibleVariables.isEmpty()) {
                 drawNoDataMessage(g2d, width, height);
                 g2d.dispose();
                 return;
             }
             
-            // Plot each visible variable
+            // Plot each visible variable into its own layer, redrawn on the render
+            // threads only when its series or drawing style changes
+            Rectangle plotBounds = new Rectangle(margin - 2, margin - 2, plotWidth + 5, plotHeight + 5);
+            List<Layer> layers = new ArrayList<>();
             for (String columnName : visibleVariables) {
-                List<Double> values = data.get(columnName);
+                DoubleColumn values = data.get(columnName);
                 if (values.isEmpty()) continue;
                 
-                // Apply aggregation
-                int aggWindow = variableAggregationWindows.getOrDefault(columnName, 1);
-                List<Double> processedValues = aggregateData(values, aggWindow);
+                // Apply aggregation and smoothing. A rolling standard deviation
+                // is not in the range of the values, so it is scaled by its own.
+                Smoothing scaledBy = smoothing.keepsScale() ? Smoothing.NONE : smoothing;
+                Series processed = getProcessedSeries(columnName, SeriesCache.Kind.VALUES, scaledBy);
+                Series plotted = getProcessedSeries(columnName, SeriesCache.Kind.VALUES, smoothing);
+                
+                // Derivative of the aggregated data, if selected
+                boolean showDerivative = derivativeCheckboxes.get(columnName).isSelected();
+                Series derivative = showDerivative 
+                    ? getProcessedSeries(columnName, SeriesCache.Kind.DERIVATIVE, scaledBy) : null;
+                Series plottedDerivative = showDerivative 
+                    ? getProcessedSeries(columnName, SeriesCache.Kind.DERIVATIVE, smoothing) : null;
                 
                 Color color = variableColors.get(columnName);
                 double scale = scaleSliders.get(columnName).getValue() / 100.0;
                 
-                // Plot original data
-                plotData(g2d, processedValues, color, plotWidth, plotHeight, margin, scale, false);
-                
-                // Plot derivative if selected (calculate derivative from aggregated data)
-                if (derivativeCheckboxes.get(columnName).isSelected()) {
-                    List<Double> derivative = calculateDerivative(processedValues);
-                    Color derivativeColor = new Color(color.getRed(), color.getGreen(), 
-                        color.getBlue(), 150);
-                    plotData(g2d, derivative, derivativeColor, plotWidth, plotHeight, margin, scale, true);
-                }
+                SeriesPainter painter = new SeriesPainter(viewStart, viewEnd, showDataPoints, timeAxis);
+                Layer seriesLayer = seriesLayers.computeIfAbsent(columnName, name -> new Layer());
+                layers.add(seriesLayer);
+                seriesLayer.renderLater(g2d, plotBounds, 
+                    Arrays.asList(processed, plotted, derivative, plottedDerivative, color, scale, 
+                        showDataPoints, viewStart, viewEnd, timeAxis), layer -> {
+                        // Plot original data
+                        painter.plotData(layer, processed, plotted, color, plotWidth, plotHeight, margin, scale, false);
+                        
+                        // Plot derivative
+                        if (derivative != null) {
+                            Color derivativeColor = new Color(color.getRed(), color.getGreen(), 
+                                color.getBlue(), 150);
+                            painter.plotData(layer, derivative, plottedDerivative, derivativeColor, 
+                                plotWidth, plotHeight, margin, scale, true);
+                        }
+                    });
             }
             
+            // The finished layers are flattened into one image, so repaints
+            // that change no layer copy a single image however many series
+            // are shown
+            List<Object> layerImages = new ArrayList<>();
+            layers.forEach(layer -> layerImages.add(layer.image));
+            seriesComposite.paint(g2d, plotBounds, layerImages, 
+                composite -> layers.forEach(layer -> layer.drawTo(composite, plotBounds)));
+            
+            // Everything below is drawn directly on every repaint
+            
             // Draw legend
             drawLegend(g2d, width, margin);
             
+            // Draw the crosshair at the mouse position
+            if (mousePos != null && dragStart == null && isInPlotArea(mousePos)) {
+                g2d.setColor(new Color(120, 120, 120, 160));
+                g2d.setStroke(new BasicStroke(1));
+                g2d.drawLine(mousePos.x, margin, mousePos.x, height - margin);
+                g2d.drawLine(margin, mousePos.y, width - margin, mousePos.y);
+            }
+            
+            // Draw the rubber band while a zoom range is being selected
+            if (dragStart != null && !panning) {
+                int left = Math.max(margin, Math.min(dragStart.x, dragEnd.x));
+                int right = Math.min(width - margin, Math.max(dragStart.x, dragEnd.x));
+                g2d.setColor(new Color(70, 130, 180, 60));
+                g2d.fillRect(left, margin, right - left, plotHeight);
+                g2d.setColor(new Color(70, 130, 180));
+                g2d.setStroke(new BasicStroke(1));
+                g2d.drawRect(left, margin, right - left, plotHeight);
+            }
+            
             g2d.dispose();
         }
         
@@ -988,8 +1993,25 @@ public class CSVViewer extends JFrame {
             g2d.drawString(yLabel, -height / 2 - fm.stringWidth(yLabel) / 2, 15);
             g2d.rotate(Math.PI / 2);
             
-            // X-axis label
+            // X-axis label; with a time axis, the times at both ends of the view
+            TimeIndex.Axis axis = getTimeAxis();
+            if (axis != null) {
+                String startLabel = TimestampParser.format(axis.timeAt(viewStart));
+                String endLabel = TimestampParser.format(axis.timeAt(viewEnd));
+                g2d.drawString(startLabel, margin, height - margin + fm.getAscent() + 4);
+                g2d.drawString(endLabel, width - margin - fm.stringWidth(endLabel), 
+                    height - margin + fm.getAscent() + 4);
+                String timeLabel = timeColumnName + (isZoomed() ? " (double-click to reset)" : "");
+                g2d.drawString(timeLabel, width / 2 - fm.stringWidth(timeLabel) / 2, height - 10);
+                return;
+            }
             String xLabel = "Data Points";
+            if (isZoomed()) {
+                int maxPoints = getMaxDataPoints();
+                xLabel += String.format(" (rows %d-%d of %d, double-click to reset)", 
+                    (long) Math.ceil(viewStart * (maxPoints - 1)), 
+                    (long) Math.floor(viewEnd * (maxPoints - 1)), maxPoints);
+            }
             g2d.drawString(xLabel, width / 2 - fm.stringWidth(xLabel) / 2, height - 10);
         }
         
@@ -1014,83 +2036,136 @@ public class CSVViewer extends JFrame {
             return visible;
         }
         
-        private void plotData(Graphics2D g2d, List<Double> values, Color color, 
-                             int plotWidth, int plotHeight, int margin, double scale, 
-                             boolean isDerivative) {
-            if (values.size() < 2) return;
+        // Off-screen image of one part of the chart. It is re-rendered only when
+        // the state it was drawn from (compared with equals) or its size
+        // changes; otherwise painting it is a single image copy. The image is
+        // kept at device resolution so it stays sharp on scaled displays.
+        private final class Layer {
+            private BufferedImage image;
+            private List<Object> renderedState; // state and geometry image was drawn for
+            private Rectangle bounds;
             
-            g2d.setColor(color);
+            // Render started by renderLater that has not been shown yet
+            private List<Object> pendingState;
+            private Future<?> pendingRender;
             
-            if (isDerivative) {
-                g2d.setStroke(new BasicStroke(2, BasicStroke.CAP_ROUND, 
-                    BasicStroke.JOIN_ROUND, 0, new float[]{5, 5}, 0));
-            } else {
-                g2d.setStroke(new BasicStroke(2));
+            // Renders on the calling thread if needed, then draws the layer
+            void paint(Graphics2D g2d, Rectangle newBounds, List<Object> newState, 
+                       Consumer<Graphics2D> renderer) {
+                List<Object> state = stateOf(g2d, newBounds, newState);
+                if (!state.equals(renderedState)) {
+                    image = render(renderer, state, newBounds, getFont(), reusableImage(state));
+                    renderedState = state;
+                    bounds = newBounds;
+                }
+                g2d.drawImage(image, bounds.x, bounds.y, bounds.width, bounds.height, null);
             }
             
-            // Find min and max values for scaling
-            double minValue = Collections.min(values);
-            double maxValue = Collections.max(values);
-            double range = maxValue - minValue;
-            if (range == 0) range = 1;
-            
-            // Apply smoothing if enabled
-            List<Double> plotValues = enableSmoothing ? smoothData(values) : values;
-            
-            Path2D path = new Path2D.Double();
-            boolean firstPoint = true;
-            List<Point> dataPoints = new ArrayList<>();
-            
-            for (int i = 0; i < plotValues.size(); i++) {
-                double normalizedValue = (plotValues.get(i) - minValue) / range;
-                normalizedValue *= scale;
-                
-                // Clamp to reasonable bounds
-                normalizedValue = Math.max(0, Math.min(normalizedValue, 5));
-                
-                int x = margin + (plotWidth * i) / Math.max(1, plotValues.size() - 1);
-                int y = (int) (margin + plotHeight - (normalizedValue * plotHeight));
-                
-                // Clamp y to visible area
-                y = Math.max(margin, Math.min(y, margin + plotHeight));
-                
-                dataPoints.add(new Point(x, y));
-                
-                if (firstPoint) {
-                    path.moveTo(x, y);
-                    firstPoint = false;
-                } else {
-                    path.lineTo(x, y);
+            // Renders an up-to-date image on the render threads if needed and
+            // repaints the panel once it is finished; until then the last
+            // finished image is kept. A render that is overtaken by a newer
+            // state is cancelled.
+            void renderLater(Graphics2D g2d, Rectangle newBounds, List<Object> newState, 
+                             Consumer<Graphics2D> renderer) {
+                List<Object> state = stateOf(g2d, newBounds, newState);
+                if (!state.equals(renderedState) && !state.equals(pendingState)) {
+                    discard();
+                    pendingState = state;
+                    Font font = getFont();
+                    pendingRender = renderExecutor().submit(() -> {
+                        BufferedImage rendered;
+                        try {
+                            rendered = render(renderer, state, newBounds, font, null);
+                        } catch (RuntimeException e) {
+                            // Let the next repaint try again
+                            SwingUtilities.invokeLater(() -> {
+                                if (pendingState == state) discard();
+                            });
+                            throw e;
+                        }
+                        if (Thread.currentThread().isInterrupted()) return;
+                        SwingUtilities.invokeLater(() -> {
+                            if (pendingState != state) return; // Overtaken meanwhile
+                            image = rendered;
+                            renderedState = state;
+                            bounds = newBounds;
+                            pendingState = null;
+                            pendingRender = null;
+                            repaint();
+                        });
+                    });
                 }
             }
             
-            // Draw the line
-            g2d.draw(path);
+            // Draws the last finished image, stretched to the given bounds
+            void drawTo(Graphics2D g2d, Rectangle newBounds) {
+                if (image != null) {
+                    g2d.drawImage(image, newBounds.x, newBounds.y, newBounds.width, newBounds.height, null);
+                }
+            }
             
-            // Draw data points if enabled
-            if (showDataPoints && !isDerivative) {
-                g2d.setColor(color.darker());
-                for (Point p : dataPoints) {
-                    g2d.fillOval(p.x - 2, p.y - 2, 4, 4);
+            // Cancels a render that has not been shown yet
+            void discard() {
+                if (pendingRender != null) {
+                    pendingRender.cancel(true);
                 }
+                pendingState = null;
+                pendingRender = null;
             }
-        }
-        
-        private List<Double> smoothData(List<Double> data) {
-            if (data.size() < 3) return data;
             
-            List<Double> smoothed = new ArrayList<>();
+            // Drops the image, e.g. while there is nothing to show
+            void clear() {
+                discard();
+                image = null;
+                renderedState = null;
+            }
             
-            // Use simple 3-point moving average
-            smoothed.add(data.get(0)); // First point unchanged
+            private List<Object> stateOf(Graphics2D g2d, Rectangle bounds, List<Object> state) {
+                AffineTransform transform = g2d.getTransform();
+                return Arrays.asList(bounds, transform.getScaleX(), transform.getScaleY(), state);
+            }
             
-            for (int i = 1; i < data.size() - 1; i++) {
-                double avg = (data.get(i - 1) + data.get(i) + data.get(i + 1)) / 3.0;
-                smoothed.add(avg);
+            // The current image if it has the right size for state
+            private BufferedImage reusableImage(List<Object> state) {
+                return image != null && renderedState != null && renderedState.subList(0, 3).equals(state.subList(0, 3))
+                    ? image : null;
             }
             
-            smoothed.add(data.get(data.size() - 1)); // Last point unchanged
-            return smoothed;
+            private BufferedImage render(Consumer<Graphics2D> renderer, List<Object> state, 
+                                         Rectangle bounds, Font font, BufferedImage target) {
+                double scaleX = (Double) state.get(1);
+                double scaleY = (Double) state.get(2);
+                int imageWidth = Math.max(1, (int) Math.ceil(bounds.width * scaleX));
+                int imageHeight = Math.max(1, (int) Math.ceil(bounds.height * scaleY));
+                if (target == null) {
+                    target = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
+                }
+                
+                Graphics2D layer = target.createGraphics();
+                layer.setComposite(AlphaComposite.Clear);
+                layer.fillRect(0, 0, imageWidth, imageHeight);
+                layer.setComposite(AlphaComposite.SrcOver);
+                layer.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                layer.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                layer.scale(scaleX, scaleY);
+                layer.translate(-bounds.x, -bounds.y);
+                layer.setFont(font);
+                renderer.accept(layer);
+                layer.dispose();
+                return target;
+            }
+        }
+        
+        private ExecutorService renderExecutor() {
+            if (renderExecutor == null) {
+                int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+                renderExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                    Thread thread = new Thread(runnable, "chart-render");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return renderExecutor;
         }
         
         private void drawLegend(Graphics2D g2d, int width, int margin) {
@@ -1146,7 +2221,5373 @@ public class CSVViewer extends JFrame {
         }
     }
     
-    public static void main(String[] args) {
+    // Draws processed series into a chart layer for a fixed view. A painter
+    // holds the vertex buffers of one render and touches no Swing state, so
+    // layers can be rendered on worker threads at the same time. Rendering
+    // stops early when the thread is interrupted; the result is then unused.
+    // Missing cells become NaN vertices, where the line is broken.
+    private static final class SeriesPainter {
+        private final double viewStart;
+        private final double viewEnd;
+        private final boolean showDataPoints;
+        private final TimeIndex.Axis axis; // null to place points by row
+        
+        private double[] vertexXs = new double[0];
+        private double[] vertexValues = new double[0];
+        private final ColumnPyramid.Summary rangeSummary = new ColumnPyramid.Summary();
+        
+        SeriesPainter(double viewStart, double viewEnd, boolean showDataPoints, TimeIndex.Axis axis) {
+            this.viewStart = viewStart;
+            this.viewEnd = viewEnd;
+            this.showDataPoints = showDataPoints;
+            this.axis = axis;
+        }
+        
+        // Scales by the range of series within the visible window and draws
+        // plotted, which is either the same series or its smoothed version
+        void plotData(Graphics2D g2d, Series series, Series plotted, Color color, 
+                             int plotWidth, int plotHeight, int margin, double scale, 
+                             boolean isDerivative) {
+            int n = series.size();
+            if (n < 2) return;
+            
+            g2d.setColor(color);
+            
+            if (isDerivative) {
+                g2d.setStroke(new BasicStroke(2, BasicStroke.CAP_ROUND, 
+                    BasicStroke.JOIN_ROUND, 0, new float[]{5, 5}, 0));
+            } else {
+                g2d.setStroke(new BasicStroke(2));
+            }
+            
+            // Visible points plus one neighbour on each side, so the line runs
+            // on to the edges of the plot
+            int first = Math.max(0, indexAtOrAfter(series, viewStart) - 1);
+            int last = Math.min(n - 1, indexAtOrAfter(series, viewEnd));
+            
+            // Find min and max values for scaling
+            series.rangeIndex().query(first, last + 1, rangeSummary);
+            if (rangeSummary.count == 0) return; // Nothing but gaps in view
+            double minValue = rangeSummary.min;
+            double maxValue = rangeSummary.max;
+            double range = maxValue - minValue;
+            if (range == 0) range = 1;
+            
+            // With more points than pixel columns, only draw the vertices that
+            // survive M4 decimation; the polyline looks the same on screen
+            int vertexCount = plotWidth > 0 && last - first + 1 > 4 * (plotWidth + 1) 
+                ? decimateM4(plotted, first, last, plotWidth) 
+                : collectPoints(plotted, first, last, plotWidth);
+            
+            Path2D path = new Path2D.Double(Path2D.WIND_NON_ZERO, vertexCount);
+            int[] pointXs = showDataPoints && !isDerivative ? new int[vertexCount] : null;
+            int[] pointYs = pointXs != null ? new int[vertexCount] : null;
+            int points = 0;
+            boolean penDown = false;
+            
+            for (int k = 0; k < vertexCount; k++) {
+                if (Double.isNaN(vertexValues[k])) {
+                    penDown = false;
+                    continue;
+                }
+                double normalizedValue = (vertexValues[k] - minValue) / range;
+                normalizedValue *= scale;
+                
+                // Clamp to reasonable bounds
+                normalizedValue = Math.max(0, Math.min(normalizedValue, 5));
+                
+                double x = margin + vertexXs[k];
+                int y = (int) (margin + plotHeight - (normalizedValue * plotHeight));
+                
+                // Clamp y to visible area
+                y = Math.max(margin, Math.min(y, margin + plotHeight));
+                
+                if (pointXs != null) {
+                    pointXs[points] = (int) Math.round(x);
+                    pointYs[points++] = y;
+                }
+                
+                if (!penDown) {
+                    path.moveTo(x, y);
+                    penDown = true;
+                } else {
+                    path.lineTo(x, y);
+                }
+            }
+            
+            // Draw the line
+            g2d.draw(path);
+            
+            // Draw data points if enabled
+            if (pointXs != null) {
+                g2d.setColor(color.darker());
+                for (int k = 0; k < points; k++) {
+                    g2d.fillOval(pointXs[k] - 2, pointYs[k] - 2, 4, 4);
+                }
+            }
+        }
+        
+        // Position of point i of series along the x-axis, which with a time
+        // axis is the time of its row rather than the row itself
+        private double positionOf(Series series, int i) {
+            double rowPosition = series.position(i);
+            return axis != null ? axis.positionOfRow(rowPosition) : rowPosition;
+        }
+        
+        // First point of series at or after a position along the x-axis
+        private int indexAtOrAfter(Series series, double position) {
+            return series.indexAtOrAfter(axis != null ? axis.rowPositionAt(position) : position);
+        }
+        
+        // Horizontal offset of a position along the full x-range within the
+        // plot; positions outside the visible window fall outside [0, plotWidth]
+        private double offsetOf(double position, int plotWidth) {
+            return (position - viewStart) * plotWidth / (viewEnd - viewStart);
+        }
+        
+        // Writes points first..last of series to the vertex buffers
+        private int collectPoints(Series series, int first, int last, int plotWidth) {
+            ensureVertexCapacity(last - first + 1);
+            DoubleColumn values = series.getValues();
+            double[] v = values.array();
+            int count = 0;
+            for (int i = first; i <= last; i++) {
+                vertexXs[count] = offsetOf(positionOf(series, i), plotWidth);
+                vertexValues[count++] = values.isPresent(i) ? v[i] : Double.NaN;
+            }
+            return count;
+        }
+        
+        // Keeps the first, minimum, maximum and last value of every pixel column
+        // (M4 decimation), taking column extremes from the series' range index
+        private int decimateM4(Series series, int first, int last, int plotWidth) {
+            ensureVertexCapacity(4 * plotWidth + 2);
+            DoubleColumn values = series.getValues();
+            double[] v = values.array();
+            ColumnPyramid index = series.rangeIndex();
+            int count = 0;
+            
+            int start = indexAtOrAfter(series, viewStart);
+            if (first < start) {
+                vertexXs[count] = offsetOf(positionOf(series, first), plotWidth);
+                vertexValues[count++] = values.isPresent(first) ? v[first] : Double.NaN;
+            }
+            
+            double span = viewEnd - viewStart;
+            for (int column = 0; column < plotWidth && start < last; column++) {
+                if (Thread.currentThread().isInterrupted()) break;
+                int end = column == plotWidth - 1 ? last 
+                    : Math.min(last, indexAtOrAfter(series, viewStart + (column + 1) * span / plotWidth));
+                if (end <= start) continue;
+                
+                int firstPresent = values.nextPresent(start);
+                if (firstPresent >= end) {
+                    vertexXs[count] = column;
+                    vertexValues[count++] = Double.NaN;
+                    start = end;
+                    continue;
+                }
+                int lastPresent = values.previousPresent(end - 1);
+                double firstValue = v[firstPresent];
+                double lastValue = v[lastPresent];
+                vertexXs[count] = column;
+                vertexValues[count++] = firstValue;
+                if (lastPresent - firstPresent > 1) {
+                    index.query(start, end, rangeSummary);
+                    boolean minFirst = Math.abs(firstValue - rangeSummary.min) 
+                        <= Math.abs(firstValue - rangeSummary.max);
+                    vertexXs[count] = column;
+                    vertexValues[count++] = minFirst ? rangeSummary.min : rangeSummary.max;
+                    vertexXs[count] = column;
+                    vertexValues[count++] = minFirst ? rangeSummary.max : rangeSummary.min;
+                }
+                if (lastPresent > firstPresent) {
+                    vertexXs[count] = column;
+                    vertexValues[count++] = lastValue;
+                }
+                start = end;
+            }
+            
+            // The point at or just past the right edge
+            vertexXs[count] = offsetOf(positionOf(series, last), plotWidth);
+            vertexValues[count++] = values.isPresent(last) ? v[last] : Double.NaN;
+            return count;
+        }
+        
+        private void ensureVertexCapacity(int capacity) {
+            if (vertexXs.length < capacity) {
+                vertexXs = new double[capacity];
+                vertexValues = new double[capacity];
+            }
+        }
+    }
+    
+    // Loads a CSV file in parallel line-aligned chunks, handing the parsed column
+    // segments to a listener in file order; compressed files are inflated on a
+    // separate thread
+    private static final class CsvLoader {
+        private static final int CHUNK_SIZE = 8 << 20;
+        private static final int BOUNDARY_SCAN_SIZE = 64 << 10;
+        // Longest chunk a byte array holds; only a record this long makes one
+        private static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE - 8;
+        // Inflated buffers waiting for the parser
+        private static final int INFLATE_QUEUE_SIZE = 4;
+        
+        enum Compression {
+            NONE, GZIP, ZIP;
+            
+            static Compression detect(File file) throws IOException {
+                byte[] magic = new byte[4];
+                int length;
+                try (InputStream in = new FileInputStream(file)) {
+                    length = in.readNBytes(magic, 0, magic.length);
+                }
+                if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+                    return GZIP;
+                }
+                if (length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+                    return ZIP;
+                }
+                return NONE;
+            }
+            
+            // Decompressed content of in; for a zip archive, its first entry
+            InputStream open(InputStream in) throws IOException {
+                switch (this) {
+                    case GZIP:
+                        return new GZIPInputStream(in, 1 << 16);
+                    case ZIP:
+                        ZipInputStream zip = new ZipInputStream(in);
+                        if (zip.getNextEntry() == null) {
+                            throw new IOException("Archive is empty");
+                        }
+                        return zip;
+                    default:
+                        return in;
+                }
+            }
+        }
+        
+        // A line-aligned buffer of inflated data, the end-of-input marker or
+        // the failure that stopped the inflating thread
+        private static final class Inflated {
+            static final Inflated END = new Inflated(null, 0, 0, null);
+            
+            private final byte[] buf;
+            private final int length;
+            private final long endOffset; // compressed bytes read so far
+            private final IOException error;
+            
+            Inflated(byte[] buf, int length, long endOffset, IOException error) {
+                this.buf = buf;
+                this.length = length;
+                this.endOffset = endOffset;
+                this.error = error;
+            }
+        }
+        
+        private final File file;
+        private final List<String> columnNames = new ArrayList<>();
+        private int[] fieldColumns;
+        private int timeField = -1; // field of the time column, or -1 without one
+        private long timeUnit;      // its TimestampParser form
+        private String timeColumn;  // its header, or null
+        private volatile long fileSize;
+        private volatile boolean cancelled;
+        private Compression compression = Compression.NONE;
+        private File cacheFile; // ColumnCache to read or write, null for none
+        private boolean cacheWritable = true; // false to only read an existing one
+        private long dataEnd;        // offset just past the last record delivered
+        private boolean endsMidLine; // that record had no line break yet
+        // Chunk copy buffers, recycled between tasks of this load only
+        private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        
+        // Column segments parsed from one chunk, indexed like getColumnNames(),
+        // with their statistics gathered on the thread that parsed them and
+        // the timestamps of their rows if the file has a time column
+        static final class Chunk {
+            private final DoubleColumn[] columns;
+            private final ColumnStats[] stats;
+            private final TimeIndex times; // null without a time column
+            private final long endOffset;
+            private final int rows;
+            
+            Chunk(DoubleColumn[] columns, TimeIndex times, long endOffset, int rows) {
+                this(columns, new ColumnStats[columns.length], times, endOffset, rows);
+                for (int i = 0; i < columns.length; i++) {
+                    stats[i] = ColumnStats.of(columns[i]);
+                }
+            }
+            
+            // A chunk whose statistics are already known, read back from a ColumnCache
+            Chunk(DoubleColumn[] columns, ColumnStats[] stats, TimeIndex times, long endOffset, int rows) {
+                this.columns = columns;
+                this.stats = stats;
+                this.times = times;
+                this.endOffset = endOffset;
+                this.rows = rows;
+            }
+            
+            DoubleColumn[] getColumns() {
+                return columns;
+            }
+            
+            // The same chunk with no column values, for listeners that keep
+            // only the statistics and the time index
+            Chunk withoutValues() {
+                return new Chunk(new DoubleColumn[0], stats, times, endOffset, rows);
+            }
+            
+            ColumnStats[] getStats() {
+                return stats;
+            }
+            
+            TimeIndex getTimes() {
+                return times;
+            }
+            
+            // File offset just past the last record of this chunk
+            long getEndOffset() {
+                return endOffset;
+            }
+            
+            int getRows() {
+                return rows;
+            }
+        }
+        
+        interface ChunkListener {
+            void chunkLoaded(Chunk chunk);
+        }
+        
+        CsvLoader(File file) {
+            this.file = file;
+            cacheFile = ColumnCache.isEnabled() ? ColumnCache.sidecarOf(file) : null;
+        }
+        
+        // Keeps the parsed columns in the given ColumnCache file instead of
+        // the sidecar, whether or not caching is turned on
+        void setCacheFile(File cacheFile) {
+            this.cacheFile = cacheFile;
+        }
+        
+        File getCacheFile() {
+            return cacheFile;
+        }
+        
+        // Uses an up-to-date cache file if there is one but never writes it
+        void setCacheReadOnly() {
+            cacheWritable = false;
+        }
+        
+        // Header names in column order, including columns that end up empty;
+        // the time column is not one of them
+        List<String> getColumnNames() {
+            return columnNames;
+        }
+        
+        // Header of the column whose timestamps index the rows, or null
+        String getTimeColumn() {
+            return timeColumn;
+        }
+        
+        File getFile() {
+            return file;
+        }
+        
+        long getFileSize() {
+            return fileSize;
+        }
+        
+        // Stops loading after the chunks already delivered; load() then returns normally
+        void cancel() {
+            cancelled = true;
+        }
+        
+        boolean isCancelled() {
+            return cancelled;
+        }
+        
+        // Reads the header, then delivers every chunk to the listener in file order.
+        // An up-to-date ColumnCache sidecar replaces the parsing; otherwise one is
+        // written along the way for the next time the file is opened.
+        void load(ChunkListener listener) throws IOException {
+            compression = Compression.detect(file);
+            if (cacheFile != null) {
+                try (ColumnCache cache = ColumnCache.open(file, cacheFile)) {
+                    if (cache != null && cache.verify()) {
+                        loadCached(cache, listener);
+                        return;
+                    }
+                }
+            }
+            if (compression != Compression.NONE) {
+                loadCompressed(listener);
+                return;
+            }
+            
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                fileSize = channel.size();
+                long modified = file.lastModified();
+                long dataStart = readHeader(channel);
+                dataEnd = dataStart;
+                
+                // Chunks are parsed at most a few ahead of delivery, so memory
+                // use does not grow with the file when the listener drops them
+                int maxInFlight = 2 * ForkJoinPool.getCommonPoolParallelism();
+                Deque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>();
+                long chunkStart = dataStart;
+                ColumnCache.Writer writer = cacheFile != null && cacheWritable
+                    ? ColumnCache.Writer.create(cacheFile, fileSize, modified, this) : null;
+                try {
+                    while ((chunkStart < fileSize || !pending.isEmpty()) && !cancelled) {
+                        while (chunkStart < fileSize && pending.size() < maxInFlight) {
+                            long chunkEnd = nextLineStart(channel, Math.min(chunkStart + CHUNK_SIZE, fileSize), fileSize);
+                            checkChunkSize(chunkEnd - chunkStart);
+                            long from = chunkStart;
+                            pending.add(ForkJoinPool.commonPool().submit(() -> parseChunk(channel, from, chunkEnd)));
+                            chunkStart = chunkEnd;
+                        }
+                        Chunk chunk = joinChunk(pending.poll());
+                        if (chunk == null) break;
+                        deliver(chunk, listener, writer);
+                    }
+                    endsMidLine = dataEnd > dataStart && !endsWithLineBreak(channel, dataEnd);
+                    // A partial load must not be mistaken for the whole file later
+                    if (writer != null && !cancelled) writer.commit(dataEnd, endsMidLine);
+                } finally {
+                    pending.forEach(task -> task.cancel(false));
+                    if (writer != null) writer.close();
+                }
+            }
+        }
+        
+        // Delivers the chunks stored in the sidecar, copied out of the mapped
+        // file on the common pool in the same way load() parses them
+        private void loadCached(ColumnCache cache, ChunkListener listener) throws IOException {
+            fileSize = cache.getSourceSize();
+            columnNames.addAll(cache.getColumnNames());
+            fieldColumns = cache.getFieldColumns();
+            timeField = cache.getTimeField();
+            timeUnit = cache.getTimeUnit();
+            timeColumn = cache.getTimeColumn();
+            
+            int maxInFlight = 2 * ForkJoinPool.getCommonPoolParallelism();
+            Deque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>();
+            int next = 0;
+            try {
+                while ((next < cache.getBlockCount() || !pending.isEmpty()) && !cancelled) {
+                    while (next < cache.getBlockCount() && pending.size() < maxInFlight) {
+                        int block = next++;
+                        pending.add(ForkJoinPool.commonPool().submit(() -> cancelled ? null : cache.readBlock(block)));
+                    }
+                    Chunk chunk = joinChunk(pending.poll());
+                    if (chunk == null) break;
+                    deliver(chunk, listener, null);
+                }
+            } finally {
+                pending.forEach(task -> task.cancel(false));
+            }
+            if (cache.getBlockCount() == 0) {
+                dataEnd = cache.getDataEnd(); // Header only
+            }
+            // Blocks end on line breaks, so only the full file can end mid-line
+            endsMidLine = dataEnd == cache.getDataEnd() && cache.endsMidLine();
+        }
+        
+        // Hands the inflated buffers to parsing tasks as they arrive and
+        // delivers the chunks in order, keeping a bounded number in flight
+        private void loadCompressed(ChunkListener listener) throws IOException {
+            fileSize = file.length();
+            long modified = file.lastModified();
+            BlockingQueue<Inflated> queue = new ArrayBlockingQueue<>(INFLATE_QUEUE_SIZE);
+            InputStream in = new FileInputStream(file);
+            Thread inflater = new Thread(() -> inflate(in, queue), "csv-inflate");
+            inflater.setDaemon(true);
+            inflater.start();
+            
+            int maxInFlight = 2 * ForkJoinPool.getCommonPoolParallelism();
+            Deque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>();
+            ColumnCache.Writer writer = null;
+            try {
+                Inflated block = take(queue);
+                if (block == Inflated.END) {
+                    if (cancelled) return;
+                    throw new IOException("File is empty");
+                }
+                int dataStart = (int) readHeader(new CsvTokenizer(block.buf, 0, block.length));
+                writer = cacheFile != null && cacheWritable
+                    ? ColumnCache.Writer.create(cacheFile, fileSize, modified, this) : null;
+                
+                for (int from = dataStart; block != Inflated.END && !cancelled; from = 0, block = take(queue)) {
+                    Inflated parsed = block;
+                    int start = from;
+                    pending.add(ForkJoinPool.commonPool().submit(
+                        () -> parseBuffer(parsed.buf, start, parsed.length, parsed.endOffset)));
+                    // Deliver what is ready, and wait once too much is in flight
+                    while (!pending.isEmpty() && (pending.size() > maxInFlight || pending.peek().isDone())) {
+                        deliver(joinChunk(pending.poll()), listener, writer);
+                    }
+                }
+                while (!pending.isEmpty() && !cancelled) {
+                    deliver(joinChunk(pending.poll()), listener, writer);
+                }
+                if (writer != null && !cancelled) writer.commit(dataEnd, false);
+            } finally {
+                inflater.interrupt();
+                pending.forEach(task -> task.cancel(false));
+                if (writer != null) writer.close();
+            }
+        }
+        
+        private void deliver(Chunk chunk, ChunkListener listener, ColumnCache.Writer writer) {
+            dataEnd = chunk.getEndOffset();
+            listener.chunkLoaded(chunk);
+            if (writer != null) writer.write(chunk);
+        }
+        
+        // Runs on the inflating thread: cuts the decompressed stream into
+        // buffers of about CHUNK_SIZE that end on a line break and queues
+        // them, followed by END or the failure. Stops when interrupted.
+        private void inflate(InputStream file, BlockingQueue<Inflated> queue) {
+            long[] compressedRead = new long[1];
+            InputStream counting = new FilterInputStream(file) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) compressedRead[0] += read;
+                    return read;
+                }
+            };
+            try {
+                try (InputStream raw = counting; InputStream in = compression.open(raw)) {
+                    byte[] buf = borrowBuffer(CHUNK_SIZE);
+                    int length = 0;
+                    while (!Thread.currentThread().isInterrupted()) {
+                        int read = in.read(buf, length, buf.length - length);
+                        if (read < 0) {
+                            if (length > 0) {
+                                queue.put(new Inflated(buf, length, compressedRead[0], null));
+                            }
+                            queue.put(Inflated.END);
+                            return;
+                        }
+                        length += read;
+                        if (length < buf.length) continue;
+                        
+                        int end = lastLineEnd(buf, length);
+                        if (end == 0) {
+                            checkChunkSize(2L * buf.length);
+                            buf = Arrays.copyOf(buf, buf.length * 2); // One line fills the buffer
+                            continue;
+                        }
+                        byte[] next = borrowBuffer(Math.max(CHUNK_SIZE, length - end));
+                        System.arraycopy(buf, end, next, 0, length - end);
+                        queue.put(new Inflated(buf, end, compressedRead[0], null));
+                        buf = next;
+                        length -= end;
+                    }
+                }
+            } catch (IOException e) {
+                try {
+                    queue.put(new Inflated(null, 0, 0, e)); // The loader takes until it fails or stops
+                } catch (InterruptedException stopped) {
+                    // The loader has stopped
+                }
+            } catch (InterruptedException e) {
+                // The loader has stopped
+            }
+        }
+        
+        // Next inflated buffer, or END once loading is cancelled
+        private Inflated take(BlockingQueue<Inflated> queue) throws IOException {
+            try {
+                Inflated block;
+                while ((block = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    if (cancelled) return Inflated.END;
+                }
+                if (block.error != null) {
+                    throw block.error;
+                }
+                return block;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Loading interrupted", e);
+            }
+        }
+        
+        // Parses the complete lines appended since the last load or call and
+        // returns them as one chunk, or null if no new line has been finished
+        Chunk readAppended() throws IOException {
+            if (compression != Compression.NONE) {
+                throw new IOException("Compressed files cannot be followed");
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < dataEnd) {
+                    throw new IOException("File was truncated");
+                }
+                
+                int length = (int) Math.min(size - dataEnd, CHUNK_SIZE);
+                if (length == 0) {
+                    return null;
+                }
+                byte[] buf = new byte[length];
+                ByteBuffer target = ByteBuffer.wrap(buf);
+                while (target.hasRemaining() && channel.read(target, dataEnd + target.position()) > 0) {
+                    // Keep reading until the window is filled
+                }
+                
+                // Leave an unfinished last line for the next call
+                int end = lastLineEnd(buf, target.position());
+                if (end == 0) {
+                    return null;
+                }
+                
+                // The rest of a line whose start was parsed by load() is skipped
+                int start = 0;
+                if (endsMidLine) {
+                    while (buf[start] != '\n' && buf[start] != '\r') start++;
+                    start += buf[start] == '\r' && start + 1 < end && buf[start + 1] == '\n' ? 2 : 1;
+                    endsMidLine = false;
+                }
+                
+                DoubleColumn[] columns = new DoubleColumn[columnNames.size()];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = new DoubleColumn();
+                }
+                TimeIndex times = timeField >= 0 ? new TimeIndex() : null;
+                int rows = parseRecords(new CsvTokenizer(buf, start, end), columns, times);
+                dataEnd += end;
+                return new Chunk(columns, times, dataEnd, rows);
+            }
+        }
+        
+        private static boolean endsWithLineBreak(FileChannel channel, long end) throws IOException {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, end - 1);
+            return last.get(0) == '\n' || last.get(0) == '\r';
+        }
+        
+        // Parses the header and returns the file offset where data rows begin.
+        // Quotes are stripped, empty names are skipped and repeated names share
+        // the first column of that name. The first column whose value in the
+        // first record is a timestamp becomes the time column, which indexes
+        // the rows instead of being a value column.
+        private long readHeader(FileChannel channel) throws IOException {
+            return readHeader(new CsvTokenizer(Channels.newInputStream(channel.position(0))));
+        }
+        
+        private long readHeader(CsvTokenizer tokenizer) throws IOException {
+            if (!tokenizer.nextRecord()) {
+                throw new IOException("File is empty");
+            }
+            
+            String[] headers = new String[tokenizer.fieldCount()];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = tokenizer.fieldString(i);
+            }
+            long dataStart = tokenizer.offset();
+            
+            while (tokenizer.nextRecord() && tokenizer.isBlank()) {
+                // Find the first record
+            }
+            for (int i = 0; i < Math.min(headers.length, tokenizer.fieldCount()) && timeField < 0; i++) {
+                long unit = headers[i].isEmpty() ? TimestampParser.NOT_A_TIMESTAMP 
+                    : TimestampParser.detect(headers[i], tokenizer.buffer(), tokenizer.fieldStart(i), tokenizer.fieldEnd(i));
+                if (unit != TimestampParser.NOT_A_TIMESTAMP) {
+                    timeField = i;
+                    timeUnit = unit;
+                    timeColumn = headers[i];
+                }
+            }
+            
+            fieldColumns = new int[headers.length];
+            for (int i = 0; i < fieldColumns.length; i++) {
+                String header = headers[i];
+                int column = columnNames.indexOf(header);
+                if (!header.isEmpty() && column < 0 && i != timeField) {
+                    column = columnNames.size();
+                    columnNames.add(header);
+                }
+                fieldColumns[i] = header.isEmpty() || i == timeField ? -1 : column;
+            }
+            
+            if (columnNames.isEmpty()) {
+                throw new IOException("No valid column headers found");
+            }
+            return dataStart;
+        }
+        
+        // Returns the offset just past the first line break at or after
+        // position: \n, \r\n or a lone \r, as CsvTokenizer ends records
+        private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+            ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+            while (position < size) {
+                scan.clear();
+                int read = channel.read(scan, position);
+                if (read <= 0) break;
+                for (int i = 0; i < read; i++) {
+                    byte b = scan.get(i);
+                    if (b == '\n') {
+                        return position + i + 1;
+                    }
+                    if (b == '\r') {
+                        long next = position + i + 1;
+                        if (i + 1 == read && next < size) {
+                            scan.clear().limit(1);
+                            channel.read(scan, next);
+                            return scan.get(0) == '\n' ? next + 1 : next;
+                        }
+                        return i + 1 < read && scan.get(i + 1) == '\n' ? next + 1 : next;
+                    }
+                }
+                position += read;
+            }
+            return size;
+        }
+        
+        // End of the last line break in buf[0, length), or 0 if there is none.
+        // A \r in the last byte is left for the next buffer, which may start
+        // with the \n that completes it.
+        private static int lastLineEnd(byte[] buf, int length) {
+            for (int end = length; end > 0; end--) {
+                byte b = buf[end - 1];
+                if (b == '\n' || b == '\r' && end < length) {
+                    return end;
+                }
+            }
+            return 0;
+        }
+        
+        private static void checkChunkSize(long length) throws IOException {
+            if (length > MAX_CHUNK_SIZE) {
+                throw new IOException("A line is longer than 2 GB; records must end with \\n, \\r\\n or \\r");
+            }
+        }
+        
+        private Chunk parseChunk(FileChannel channel, long from, long to) throws IOException {
+            if (cancelled) {
+                return null;
+            }
+            int length = (int) (to - from);
+            byte[] buf = borrowBuffer(length);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            mapped.get(buf, 0, length);
+            return parseBuffer(buf, 0, length, to);
+        }
+        
+        // Parses the records in buf[from, to), then recycles buf
+        private Chunk parseBuffer(byte[] buf, int from, int to, long endOffset) throws IOException {
+            int capacity = (to - from) / 16 / Math.max(fieldColumns.length, 1);
+            DoubleColumn[] columns = new DoubleColumn[columnNames.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new DoubleColumn(capacity);
+            }
+            TimeIndex times = timeField >= 0 ? new TimeIndex(capacity) : null;
+            int rows = parseRecords(new CsvTokenizer(buf, from, to), columns, times);
+            buffers.offer(buf);
+            return new Chunk(columns, times, endOffset, rows);
+        }
+        
+        private byte[] borrowBuffer(int length) {
+            byte[] buf = buffers.poll();
+            return buf != null && buf.length >= length ? buf : new byte[Math.max(length, CHUNK_SIZE)];
+        }
+        
+        // Appends one cell per column for every remaining non-blank record and
+        // returns their number, so all columns stay aligned with the rows.
+        // Empty, non-numeric and absent fields become missing cells; of
+        // several fields under the same header the first one is used. The
+        // timestamp of each record goes to times, if the file has a time column.
+        private int parseRecords(CsvTokenizer tokenizer, DoubleColumn[] columns, TimeIndex times) throws IOException {
+            NumberParser parser = NumberParser.create();
+            TimestampParser timeParser = new TimestampParser(timeUnit);
+            int rows = 0;
+            while (tokenizer.nextRecord()) {
+                if (tokenizer.isBlank()) continue; // Skip empty lines
+                rows++;
+                
+                byte[] buf = tokenizer.buffer();
+                if (times != null) {
+                    if (timeField < tokenizer.fieldCount() 
+                            && timeParser.parse(buf, tokenizer.fieldStart(timeField), tokenizer.fieldEnd(timeField))) {
+                        times.add(timeParser.value());
+                    } else {
+                        times.addMissing();
+                    }
+                }
+                int fields = Math.min(tokenizer.fieldCount(), fieldColumns.length);
+                for (int i = 0; i < fields; i++) {
+                    int column = fieldColumns[i];
+                    if (column < 0 || columns[column].size() == rows) continue;
+                    int start = tokenizer.fieldStart(i);
+                    int end = tokenizer.fieldEnd(i);
+                    if (start < end && parser.parse(buf, start, end)) {
+                        columns[column].add(parser.value());
+                    } else {
+                        columns[column].addMissing();
+                    }
+                }
+                if (fields < fieldColumns.length) {
+                    for (DoubleColumn column : columns) {
+                        if (column.size() < rows) column.addMissing();
+                    }
+                }
+            }
+            return rows;
+        }
+        
+        private static Chunk joinChunk(ForkJoinTask<Chunk> task) throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Loading interrupted", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+    }
+    
+    // Binary columnar sidecar <name>.colcache of a CSV file, read instead of the
+    // text while the source keeps its recorded size and modification time.
+    // -Dcsvviewer.columnCache=false turns it off; batch runs only read it
+    // unless given --write-cache.
+    //
+    // Checksums of every block and of the header and footer catch sidecars
+    // that were cut short, damaged or copied; a mismatch means parsing again.
+    //
+    // Layout, little-endian, every section 8-byte aligned:
+    //   header  MAGIC, source size, source mtime, column count, names as
+    //           length-prefixed UTF-8, field count, column of each field,
+    //           time field (-1 without one), its unit and name
+    //   blocks  end offset in the source, rows, then per column its value
+    //           count, validity word count (0 without gaps) and stats, then
+    //           the values of each column in turn, each followed by its
+    //           validity bitmap, then with a time column the count of
+    //           timestamps and of missing ones, the timestamps and the rows
+    //           of the missing ones, then the quantile sketch of each column
+    //   footer  offset of each block, CRC32C of each block, data end,
+    //           ends-mid-line flag, block count, CRC32C of the header, the
+    //           footer and these three fields, MAGIC
+    private static final class ColumnCache implements Closeable {
+        static final String PROPERTY = "csvviewer.columnCache";
+        static final String SUFFIX = ".colcache";
+        private static final long MAGIC = 0x354c_4f43_5653_4321L; // "!CSVCOL5"
+        // Per column in a block header: value count, validity words, stats
+        private static final int COLUMN_HEADER_BYTES = 2 * Long.BYTES + ColumnStats.BYTES;
+        private static final int TRAILER_BYTES = 5 * Long.BYTES;
+        private static final int FOOTER_BYTES_PER_BLOCK = 2 * Long.BYTES;
+        
+        private final FileChannel channel;
+        private final long sourceSize;
+        private final List<String> columnNames;
+        private final int[] fieldColumns;
+        private final int timeField;
+        private final long timeUnit;
+        private final String timeColumn;
+        private final long[] blockOffsets;
+        private final long[] blockChecksums;
+        private final long footerStart;
+        private final long dataEnd;
+        private final boolean endsMidLine;
+        
+        private ColumnCache(FileChannel channel, long sourceSize, List<String> columnNames, int[] fieldColumns, 
+                            int timeField, long timeUnit, String timeColumn, 
+                            long[] blockOffsets, long[] blockChecksums, long footerStart, 
+                            long dataEnd, boolean endsMidLine) {
+            this.channel = channel;
+            this.sourceSize = sourceSize;
+            this.columnNames = columnNames;
+            this.fieldColumns = fieldColumns;
+            this.timeField = timeField;
+            this.timeUnit = timeUnit;
+            this.timeColumn = timeColumn;
+            this.blockOffsets = blockOffsets;
+            this.blockChecksums = blockChecksums;
+            this.footerStart = footerStart;
+            this.dataEnd = dataEnd;
+            this.endsMidLine = endsMidLine;
+        }
+        
+        static boolean isEnabled() {
+            return !"false".equalsIgnoreCase(System.getProperty(PROPERTY));
+        }
+        
+        static File sidecarOf(File source) {
+            return new File(source.getPath() + SUFFIX);
+        }
+        
+        // Opens the cache file of source, normally its sidecar, or returns null
+        // if there is none or it does not match the current source file
+        static ColumnCache open(File source, File sidecar) {
+            if (!sidecar.isFile()) return null;
+            
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ);
+                long size = channel.size();
+                if (size < TRAILER_BYTES) return closeQuietly(channel);
+                
+                ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_BYTES, TRAILER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+                long dataEnd = trailer.getLong();
+                boolean endsMidLine = trailer.getLong() != 0;
+                long blockCount = trailer.getLong();
+                long checksum = trailer.getLong();
+                if (trailer.getLong() != MAGIC || blockCount < 0 
+                    || blockCount > (size - TRAILER_BYTES) / FOOTER_BYTES_PER_BLOCK) {
+                    return closeQuietly(channel);
+                }
+                long footerStart = size - TRAILER_BYTES - blockCount * FOOTER_BYTES_PER_BLOCK;
+                ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerStart, 
+                    blockCount * FOOTER_BYTES_PER_BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+                long[] blockOffsets = new long[(int) blockCount];
+                long[] blockChecksums = new long[blockOffsets.length];
+                for (int i = 0; i < blockOffsets.length; i++) {
+                    blockOffsets[i] = footer.getLong();
+                }
+                for (int i = 0; i < blockChecksums.length; i++) {
+                    blockChecksums[i] = footer.getLong();
+                }
+                
+                long headerEnd = blockCount > 0 ? blockOffsets[0] : footerStart;
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerEnd)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+                CRC32C crc = new CRC32C();
+                crc.update(header.duplicate());
+                crc.update(footer.flip());
+                crc.update(trailer.flip().limit(3 * Long.BYTES));
+                if (crc.getValue() != checksum) {
+                    return closeQuietly(channel);
+                }
+                long sourceSize = header.getLong(8);
+                if (header.getLong(0) != MAGIC || sourceSize != source.length() 
+                    || header.getLong(16) != source.lastModified()) {
+                    return closeQuietly(channel); // Stale, the file is parsed again
+                }
+                header.position(24);
+                List<String> columnNames = new ArrayList<>();
+                for (int i = header.getInt(); i > 0; i--) {
+                    byte[] name = new byte[header.getInt()];
+                    header.get(name);
+                    columnNames.add(new String(name, StandardCharsets.UTF_8));
+                }
+                int[] fieldColumns = new int[header.getInt()];
+                for (int i = 0; i < fieldColumns.length; i++) {
+                    fieldColumns[i] = header.getInt();
+                }
+                int timeField = header.getInt();
+                long timeUnit = header.getLong();
+                byte[] timeColumn = new byte[header.getInt()];
+                header.get(timeColumn);
+                return new ColumnCache(channel, sourceSize, columnNames, fieldColumns, 
+                    timeField, timeUnit, timeField >= 0 ? new String(timeColumn, StandardCharsets.UTF_8) : null, 
+                    blockOffsets, blockChecksums, footerStart, dataEnd, endsMidLine);
+            } catch (IOException | RuntimeException e) {
+                // Unreadable or cut short: treat it like a missing sidecar
+                return closeQuietly(channel);
+            }
+        }
+        
+        private static ColumnCache closeQuietly(FileChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing was written through it
+                }
+            }
+            return null;
+        }
+        
+        long getSourceSize() {
+            return sourceSize;
+        }
+        
+        List<String> getColumnNames() {
+            return columnNames;
+        }
+        
+        int[] getFieldColumns() {
+            return fieldColumns;
+        }
+        
+        int getTimeField() {
+            return timeField;
+        }
+        
+        long getTimeUnit() {
+            return timeUnit;
+        }
+        
+        String getTimeColumn() {
+            return timeColumn;
+        }
+        
+        int getBlockCount() {
+            return blockOffsets.length;
+        }
+        
+        long getDataEnd() {
+            return dataEnd;
+        }
+        
+        boolean endsMidLine() {
+            return endsMidLine;
+        }
+        
+        // Whether every block still has the checksum it was written with
+        boolean verify() {
+            CRC32C crc = new CRC32C();
+            try {
+                for (int i = 0; i < blockOffsets.length; i++) {
+                    long end = i + 1 < blockOffsets.length ? blockOffsets[i + 1] : footerStart;
+                    crc.reset();
+                    crc.update(channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[i], end - blockOffsets[i]));
+                    if (crc.getValue() != blockChecksums[i]) return false;
+                }
+                return true;
+            } catch (IOException | RuntimeException e) {
+                return false;
+            }
+        }
+        
+        // Maps one block and copies its columns onto the heap; safe to call
+        // from several threads at once
+        CsvLoader.Chunk readBlock(int index) throws IOException {
+            long start = blockOffsets[index];
+            long end = index + 1 < blockOffsets.length ? blockOffsets[index + 1] : footerStart;
+            ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                long endOffset = block.getLong();
+                int rows = (int) block.getLong();
+                int[] sizes = new int[columnNames.size()];
+                int[] validityWords = new int[sizes.length];
+                ColumnStats[] stats = new ColumnStats[sizes.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = (int) block.getLong();
+                    validityWords[i] = (int) block.getLong();
+                    stats[i] = ColumnStats.readFrom(block);
+                }
+                DoubleColumn[] columns = new DoubleColumn[sizes.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    columns[i] = readColumn(block, sizes[i], validityWords[i]);
+                }
+                TimeIndex times = null;
+                if (timeField >= 0) {
+                    long[] values = new long[(int) block.getLong()];
+                    int[] missingRows = new int[(int) block.getLong()];
+                    block.asLongBuffer().get(values);
+                    block.position(block.position() + values.length * Long.BYTES);
+                    block.asIntBuffer().get(missingRows);
+                    block.position(block.position() + (missingRows.length + 1) / 2 * Long.BYTES);
+                    times = new TimeIndex(values, values.length, missingRows);
+                }
+                for (ColumnStats columnStats : stats) {
+                    columnStats.setSketch(QuantileSketch.readFrom(block));
+                }
+                return new CsvLoader.Chunk(columns, stats, times, endOffset, rows);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt column cache: " + e, e);
+            }
+        }
+        
+        // Number of values of every column in one block, read from its header only
+        int[] valueCounts(int index) throws IOException {
+            ByteBuffer header = mapBlockHeader(index);
+            int[] sizes = new int[columnNames.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = (int) header.getLong(2 * Long.BYTES + i * COLUMN_HEADER_BYTES);
+            }
+            return sizes;
+        }
+        
+        // Stats of every column in one block, read from its header only
+        ColumnStats[] blockStats(int index) throws IOException {
+            ByteBuffer header = mapBlockHeader(index);
+            ColumnStats[] stats = new ColumnStats[columnNames.size()];
+            for (int i = 0; i < stats.length; i++) {
+                header.position(2 * Long.BYTES + i * COLUMN_HEADER_BYTES + 2 * Long.BYTES);
+                stats[i] = ColumnStats.readFrom(header);
+            }
+            return stats;
+        }
+        
+        // Maps only one column of one block and copies it onto the heap
+        DoubleColumn readColumn(int index, int column) throws IOException {
+            ByteBuffer header = mapBlockHeader(index);
+            long start = blockOffsets[index] + header.capacity();
+            for (int i = 0; i < column; i++) {
+                start += (header.getLong(2 * Long.BYTES + i * COLUMN_HEADER_BYTES) 
+                    + header.getLong(3 * Long.BYTES + i * COLUMN_HEADER_BYTES)) * Long.BYTES;
+            }
+            int size = (int) header.getLong(2 * Long.BYTES + column * COLUMN_HEADER_BYTES);
+            int validityWords = (int) header.getLong(3 * Long.BYTES + column * COLUMN_HEADER_BYTES);
+            if (size == 0) {
+                return new DoubleColumn(0);
+            }
+            ByteBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, start, 
+                ((long) size + validityWords) * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                return readColumn(values, size, validityWords);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt column cache: " + e, e);
+            }
+        }
+        
+        private ByteBuffer mapBlockHeader(int index) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[index], 
+                2L * Long.BYTES + (long) columnNames.size() * COLUMN_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        // Reads size values and their validity bitmap at the buffer's position
+        private static DoubleColumn readColumn(ByteBuffer in, int size, int validityWords) {
+            double[] values = new double[size];
+            in.asDoubleBuffer().get(values);
+            in.position(in.position() + size * Double.BYTES);
+            long[] validity = null;
+            if (validityWords > 0) {
+                validity = new long[validityWords];
+                in.asLongBuffer().get(validity);
+                in.position(in.position() + validityWords * Long.BYTES);
+            }
+            return new DoubleColumn(values, validity, size);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+        
+        // Streams the chunks of a load into a temporary file next to the
+        // sidecar. After the first failure the writer is abandoned and ignores
+        // further calls, so the load itself never fails because of the cache.
+        static final class Writer implements Closeable {
+            private static final int BUFFER_SIZE = 1 << 20;
+            
+            private final File target;
+            private final File temp;
+            private final int columnCount;
+            private final boolean timed; // whether blocks carry timestamps
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            private FileChannel channel; // null once committed or abandoned
+            private long position;
+            private long[] blockOffsets = new long[16];
+            private long[] blockChecksums = new long[16];
+            private int blockCount;
+            // Running checksums of the blocks and of the header and footer;
+            // section is the one the bytes put since checked go to
+            private final CRC32C blockChecksum = new CRC32C();
+            private final CRC32C metaChecksum = new CRC32C();
+            private CRC32C section = metaChecksum;
+            private int checked;
+            
+            private Writer(File target, File temp, FileChannel channel, int columnCount, boolean timed) {
+                this.target = target;
+                this.temp = temp;
+                this.channel = channel;
+                this.columnCount = columnCount;
+                this.timed = timed;
+            }
+            
+            // Starts the cache file target for the header layout loader has
+            // read, or returns null if it cannot be created
+            static Writer create(File target, long sourceSize, long sourceModified, CsvLoader loader) {
+                List<String> columnNames = loader.getColumnNames();
+                int[] fieldColumns = loader.fieldColumns;
+                File temp = null;
+                try {
+                    temp = Files.createTempFile(target.getAbsoluteFile().toPath().getParent(), 
+                        target.getName(), ".tmp").toFile();
+                    FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+                    Writer writer = new Writer(target, temp, channel, columnNames.size(), loader.timeField >= 0);
+                    writer.ensure(24 + 4);
+                    writer.buffer.putLong(MAGIC).putLong(sourceSize).putLong(sourceModified);
+                    writer.buffer.putInt(columnNames.size());
+                    for (String name : columnNames) {
+                        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                        writer.ensure(4);
+                        writer.buffer.putInt(bytes.length);
+                        writer.putBytes(bytes);
+                    }
+                    writer.ensure(4);
+                    writer.buffer.putInt(fieldColumns.length);
+                    for (int column : fieldColumns) {
+                        writer.ensure(4);
+                        writer.buffer.putInt(column);
+                    }
+                    byte[] timeColumn = loader.timeColumn != null 
+                        ? loader.timeColumn.getBytes(StandardCharsets.UTF_8) : new byte[0];
+                    writer.ensure(4 + 8 + 4);
+                    writer.buffer.putInt(loader.timeField).putLong(loader.timeUnit).putInt(timeColumn.length);
+                    writer.putBytes(timeColumn);
+                    writer.align();
+                    return writer;
+                } catch (IOException | RuntimeException e) {
+                    if (temp != null) temp.delete();
+                    return null;
+                }
+            }
+            
+            void write(CsvLoader.Chunk chunk) {
+                if (channel == null) return;
+                try {
+                    finishBlock();
+                    if (blockCount == blockOffsets.length) {
+                        blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+                        blockChecksums = Arrays.copyOf(blockChecksums, blockCount * 2);
+                    }
+                    blockOffsets[blockCount++] = position + buffer.position();
+                    blockChecksum.reset();
+                    section = blockChecksum;
+                    
+                    DoubleColumn[] columns = chunk.getColumns();
+                    ensure(2 * Long.BYTES);
+                    buffer.putLong(chunk.getEndOffset()).putLong(chunk.getRows());
+                    for (int i = 0; i < columnCount; i++) {
+                        ensure(COLUMN_HEADER_BYTES);
+                        buffer.putLong(columns[i].size());
+                        buffer.putLong(validityWords(columns[i]));
+                        chunk.getStats()[i].writeTo(buffer);
+                    }
+                    for (int i = 0; i < columnCount; i++) {
+                        putDoubles(columns[i].array(), columns[i].size());
+                        long[] validity = columns[i].validity();
+                        for (int k = 0; k < validityWords(columns[i]); k++) {
+                            ensure(Long.BYTES);
+                            buffer.putLong(validity[k]);
+                        }
+                    }
+                    if (timed) {
+                        TimeIndex times = chunk.getTimes();
+                        ensure(2 * Long.BYTES);
+                        buffer.putLong(times.size()).putLong(times.missingCount());
+                        for (int k = 0; k < times.size(); k++) {
+                            ensure(Long.BYTES);
+                            buffer.putLong(times.array()[k]);
+                        }
+                        for (int k = 0; k < times.missingCount(); k++) {
+                            ensure(Integer.BYTES);
+                            buffer.putInt(times.missingRows()[k]);
+                        }
+                        align();
+                    }
+                    for (int i = 0; i < columnCount; i++) {
+                        QuantileSketch sketch = chunk.getStats()[i].sketch();
+                        if (sketch == null) {
+                            ensure(Long.BYTES);
+                            buffer.putLong(QuantileSketch.NONE);
+                        } else {
+                            ensure(sketch.bytes());
+                            sketch.writeTo(buffer);
+                        }
+                    }
+                } catch (IOException e) {
+                    abandon();
+                }
+            }
+            
+            private static int validityWords(DoubleColumn column) {
+                return column.hasMissing() ? DoubleColumn.words(column.size()) : 0;
+            }
+            
+            // Finishes the sidecar and moves it into place
+            void commit(long dataEnd, boolean endsMidLine) {
+                if (channel == null) return;
+                try {
+                    finishBlock();
+                    section = metaChecksum;
+                    for (long[] entries : new long[][] {blockOffsets, blockChecksums}) {
+                        for (int i = 0; i < blockCount; i++) {
+                            ensure(Long.BYTES);
+                            buffer.putLong(entries[i]);
+                        }
+                    }
+                    ensure(TRAILER_BYTES);
+                    buffer.putLong(dataEnd).putLong(endsMidLine ? 1 : 0).putLong(blockCount);
+                    checksum();
+                    buffer.putLong(metaChecksum.getValue()).putLong(MAGIC);
+                    flush();
+                    channel.close();
+                    channel = null;
+                    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    abandon();
+                }
+            }
+            
+            // Discards the temporary file unless commit() succeeded
+            @Override
+            public void close() {
+                abandon();
+            }
+            
+            private void abandon() {
+                closeQuietly(channel);
+                channel = null;
+                temp.delete();
+            }
+            
+            private void ensure(int bytes) throws IOException {
+                if (buffer.remaining() < bytes) {
+                    flush();
+                }
+            }
+            
+            private void flush() throws IOException {
+                checksum();
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer);
+                }
+                buffer.clear();
+                checked = 0;
+            }
+            
+            // Adds the bytes put since the last call to the current section
+            private void checksum() {
+                ByteBuffer written = buffer.duplicate();
+                written.limit(buffer.position()).position(checked);
+                section.update(written);
+                checked = buffer.position();
+            }
+            
+            // Ends the current section, recording its checksum if it is a block
+            private void finishBlock() {
+                checksum();
+                if (section == blockChecksum) {
+                    blockChecksums[blockCount - 1] = blockChecksum.getValue();
+                }
+            }
+            
+            private void align() throws IOException {
+                ensure(Long.BYTES);
+                while ((position + buffer.position()) % Long.BYTES != 0) {
+                    buffer.put((byte) 0);
+                }
+            }
+            
+            private void putBytes(byte[] bytes) throws IOException {
+                for (int offset = 0; offset < bytes.length; ) {
+                    ensure(1);
+                    int count = Math.min(bytes.length - offset, buffer.remaining());
+                    buffer.put(bytes, offset, count);
+                    offset += count;
+                }
+            }
+            
+            // Bulk copies through a double view of the buffer, which is a plain
+            // memory copy on little-endian machines
+            private void putDoubles(double[] values, int size) throws IOException {
+                for (int offset = 0; offset < size; ) {
+                    ensure(Double.BYTES);
+                    DoubleBuffer view = buffer.asDoubleBuffer();
+                    int count = Math.min(size - offset, view.remaining());
+                    view.put(values, offset, count);
+                    buffer.position(buffer.position() + count * Double.BYTES);
+                    offset += count;
+                }
+            }
+        }
+    }
+    
+    // Columns of a file too large to keep on the heap, paged in from its mapped
+    // ColumnCache one block at a time; -Dcsvviewer.memoryBudgetMB sets the budget
+    // and -Dcsvviewer.outOfCore=true or false forces the choice
+    private static final class PagedStore implements Closeable {
+        static final String PROPERTY = "csvviewer.outOfCore";
+        static final String BUDGET_PROPERTY = "csvviewer.memoryBudgetMB";
+        // A compressed file is assumed to inflate to about this many times its size
+        private static final int COMPRESSION_RATIO = 4;
+        
+        private final ColumnCache cache;
+        private final File temporary; // cache file deleted on close, or null
+        private final int[][] blockStarts; // per column: first row of every block, then the size
+        private final long[] presentCounts;
+        private final PagedColumn[] columns;
+        private final long maxPageBytes;
+        private final LinkedHashMap<Long, DoubleColumn> pages = new LinkedHashMap<>(16, 0.75f, true);
+        private long pageBytes;
+        
+        private PagedStore(ColumnCache cache, File temporary, int[][] blockStarts, long[] presentCounts, 
+                           long maxPageBytes) {
+            this.cache = cache;
+            this.temporary = temporary;
+            this.blockStarts = blockStarts;
+            this.presentCounts = presentCounts;
+            this.maxPageBytes = maxPageBytes;
+            columns = new PagedColumn[blockStarts.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new PagedColumn(this, i);
+            }
+        }
+        
+        static long budgetBytes() {
+            return Long.getLong(BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 2 >> 20) << 20;
+        }
+        
+        // Whether the columns of file should be left on disk
+        static boolean shouldPage(File file) {
+            String mode = System.getProperty(PROPERTY, "auto");
+            if (mode.equalsIgnoreCase("true") || mode.equalsIgnoreCase("false")) {
+                return Boolean.parseBoolean(mode);
+            }
+            long estimate = file.length();
+            try {
+                if (CsvLoader.Compression.detect(file) != CsvLoader.Compression.NONE) {
+                    estimate *= COMPRESSION_RATIO;
+                }
+            } catch (IOException e) {
+                // The load reports it
+            }
+            return estimate > budgetBytes();
+        }
+        
+        // Where to keep the columns of file: its sidecar, or a temporary file
+        // when caching is turned off or the sidecar cannot be written
+        static File cacheFileFor(File file) {
+            File sidecar = ColumnCache.sidecarOf(file);
+            File directory = sidecar.getAbsoluteFile().getParentFile();
+            if (ColumnCache.isEnabled() && directory != null && directory.canWrite()) {
+                return sidecar;
+            }
+            try {
+                File temp = File.createTempFile("csvviewer", ColumnCache.SUFFIX);
+                temp.deleteOnExit();
+                return temp;
+            } catch (IOException e) {
+                return sidecar; // Opening the store reports the failure
+            }
+        }
+        
+        // Opens the columns a completed load of source wrote to cacheFile
+        static PagedStore open(File source, File cacheFile) throws IOException {
+            ColumnCache cache = ColumnCache.open(source, cacheFile);
+            if (cache == null) {
+                throw new IOException("Could not keep the columns on disk in " + cacheFile);
+            }
+            try {
+                int blocks = cache.getBlockCount();
+                int[][] blockStarts = new int[cache.getColumnNames().size()][blocks + 1];
+                long[] presentCounts = new long[blockStarts.length];
+                for (int block = 0; block < blocks; block++) {
+                    int[] sizes = cache.valueCounts(block);
+                    ColumnStats[] stats = cache.blockStats(block);
+                    for (int i = 0; i < sizes.length; i++) {
+                        presentCounts[i] += stats[i].count();
+                        long next = (long) blockStarts[i][block] + sizes[i];
+                        if (next > Integer.MAX_VALUE) {
+                            throw new IOException("Too many values in column " + cache.getColumnNames().get(i));
+                        }
+                        blockStarts[i][block + 1] = (int) next;
+                    }
+                }
+                File temporary = cacheFile.equals(ColumnCache.sidecarOf(source)) ? null : cacheFile;
+                return new PagedStore(cache, temporary, blockStarts, presentCounts, budgetBytes() / 2);
+            } catch (IOException | RuntimeException e) {
+                cache.close();
+                throw e;
+            }
+        }
+        
+        // Indexed like the column names of the load
+        PagedColumn column(int index) {
+            return columns[index];
+        }
+        
+        int size(int column) {
+            int[] starts = blockStarts[column];
+            return starts[starts.length - 1];
+        }
+        
+        // Rows of a column that have a value
+        int presentCount(int column) {
+            return (int) presentCounts[column];
+        }
+        
+        int blockStart(int column, int block) {
+            return blockStarts[column][block];
+        }
+        
+        // Block that holds the given row of a column
+        int blockOf(int column, int row) {
+            int[] starts = blockStarts[column];
+            int low = 0;
+            int high = starts.length - 2;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (starts[mid] <= row) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+        
+        // The values of one column in one block; safe to call from several
+        // threads, which may read the same page twice
+        DoubleColumn page(int column, int block) throws IOException {
+            long key = (long) block * columns.length + column;
+            synchronized (pages) {
+                DoubleColumn page = pages.get(key);
+                if (page != null) return page;
+            }
+            DoubleColumn page = cache.readColumn(block, column);
+            synchronized (pages) {
+                if (pages.put(key, page) == null) {
+                    pageBytes += pageBytes(page);
+                }
+                Iterator<DoubleColumn> eldest = pages.values().iterator();
+                while (pageBytes > maxPageBytes && pages.size() > 1) {
+                    pageBytes -= pageBytes(eldest.next());
+                    eldest.remove();
+                }
+            }
+            return page;
+        }
+        
+        private static long pageBytes(DoubleColumn page) {
+            long[] validity = page.validity();
+            return (long) Double.BYTES * page.array().length + (validity != null ? (long) Long.BYTES * validity.length : 0);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            synchronized (pages) {
+                pages.clear();
+                pageBytes = 0;
+            }
+            cache.close();
+            if (temporary != null) {
+                temporary.delete();
+            }
+        }
+    }
+    
+    // One column of a PagedStore: a min/max overview zoomed out, and the raw rows
+    // of a window around the view once it covers at most half of DETAIL_POINTS
+    private static final class PagedColumn implements ColumnSource {
+        static final int DETAIL_POINTS = 1 << 18;
+        static final int OVERVIEW_POINTS = 1 << 16;
+        
+        private final PagedStore store;
+        private final int column;
+        private Series overview;
+        
+        PagedColumn(PagedStore store, int column) {
+            this.store = store;
+            this.column = column;
+        }
+        
+        @Override
+        public int size() {
+            return store.size(column);
+        }
+        
+        @Override
+        public DoubleColumn slice(int from, int to) throws IOException {
+            to = Math.min(to, size());
+            DoubleColumn values = new DoubleColumn(Math.max(0, to - from));
+            for (int row = from; row < to; ) {
+                int block = store.blockOf(column, row);
+                DoubleColumn page = store.page(column, block);
+                int offset = row - store.blockStart(column, block);
+                int count = Math.min(page.size() - offset, to - row);
+                values.addRange(page, offset, offset + count);
+                row += count;
+            }
+            return values;
+        }
+        
+        // Min/max downsampled series of the whole column, computed on first use
+        synchronized Series overview() throws IOException {
+            if (overview == null) {
+                overview = downsampleMinMax(OVERVIEW_POINTS);
+            }
+            return overview;
+        }
+        
+        // Raw rows of the detail window starting at row start, with one more
+        // row on each side so lines run on to the edges of the plot
+        Series detail(int start) throws IOException {
+            int from = Math.max(0, start - 1);
+            int to = (int) Math.min(size(), (long) start + DETAIL_POINTS + 1);
+            int[] rows = new int[to - from];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = from + i;
+            }
+            return new Series(slice(from, to), rows, size());
+        }
+        
+        // First row of the detail window for the view [viewStart, viewEnd]
+        // of the full range, or -1 if the view covers too many rows. Windows
+        // start at multiples of half their size, so small pans reuse one.
+        int detailStart(double viewStart, double viewEnd) {
+            int last = Math.max(0, size() - 1);
+            long from = (long) Math.floor(viewStart * last);
+            long to = (long) Math.ceil(viewEnd * last) + 1;
+            int half = DETAIL_POINTS / 2;
+            return to - from > half ? -1 : (int) (from / half * half);
+        }
+        
+        // Whether the aggregated series stays within maxPoints
+        boolean fits(Aggregation aggregation, TimeIndex times, long maxPoints) {
+            return !aggregation.isNone() && (times != null || !aggregation.isTimeBucket()) 
+                && aggregation.outputSize(size(), times) <= maxPoints;
+        }
+        
+        // As CSVViewer.aggregate; times must be given for time buckets
+        Series aggregate(Aggregation aggregation, TimeIndex times) throws IOException {
+            switch (aggregation.getMode()) {
+                case LTTB: return downsampleLttb(aggregation.getSize());
+                case MIN_MAX: return downsampleMinMax(aggregation.getSize());
+                case TIME_BUCKET: return Resampler.resample(times, this, aggregation);
+                default: return new Series(averages(aggregation.getSize()));
+            }
+        }
+        
+        // As CSVViewer.aggregateData
+        private DoubleColumn averages(int windowSize) throws IOException {
+            int n = size();
+            DoubleColumn aggregated = new DoubleColumn((n + windowSize - 1) / windowSize);
+            Cursor cursor = new Cursor();
+            for (int i = 0; i < n; i += windowSize) {
+                int end = Math.min(i + windowSize, n);
+                double sum = 0;
+                int count = 0;
+                for (int j = cursor.nextPresent(i); j < end; j = cursor.nextPresent(j + 1)) {
+                    sum += cursor.get(j);
+                    count++;
+                }
+                if (count > 0) {
+                    aggregated.add(sum / count);
+                } else {
+                    aggregated.addMissing();
+                }
+            }
+            return aggregated;
+        }
+        
+        // Reads the present values by index, from a cursor over the rows when
+        // there are no gaps
+        private Reader presentValues() {
+            return store.presentCount(column) < size() ? new PackedCursor() : new Cursor();
+        }
+        
+        // All n present values, with their rows
+        private Series packed(Reader reader, int n) throws IOException {
+            double[] values = new double[n];
+            int[] rows = new int[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = reader.get(i);
+                rows[i] = reader.row(i);
+            }
+            return new Series(new DoubleColumn(values, n), rows, size());
+        }
+        
+        // As CSVViewer.downsampleLttb
+        private Series downsampleLttb(int threshold) throws IOException {
+            if (threshold >= size() || threshold < 3) {
+                return new Series(slice(0, size()));
+            }
+            int n = store.presentCount(column);
+            Reader reader = presentValues();
+            if (threshold >= n) {
+                return packed(reader, n);
+            }
+            
+            double[] sampled = new double[threshold];
+            int[] rows = new int[threshold];
+            double every = (double) (n - 2) / (threshold - 2);
+            
+            int count = 0;
+            int previous = 0;
+            double previousY = reader.get(0);
+            sampled[count] = previousY;
+            rows[count++] = reader.row(0);
+            
+            for (int bucket = 0; bucket < threshold - 2; bucket++) {
+                int averageStart = (int) ((bucket + 1) * every) + 1;
+                int averageEnd = Math.min((int) ((bucket + 2) * every) + 1, n);
+                double averageX = (averageStart + averageEnd - 1) / 2.0;
+                double averageY = 0;
+                for (int j = averageStart; j < averageEnd; j++) {
+                    averageY += reader.get(j);
+                }
+                averageY /= averageEnd - averageStart;
+                
+                int rangeStart = (int) (bucket * every) + 1;
+                int rangeEnd = (int) ((bucket + 1) * every) + 1;
+                double maxArea = -1;
+                int selected = rangeStart;
+                double selectedY = reader.get(rangeStart);
+                for (int j = rangeStart; j < rangeEnd; j++) {
+                    double y = reader.get(j);
+                    double area = Math.abs((previous - averageX) * (y - previousY) 
+                        - (previous - j) * (averageY - previousY));
+                    if (area > maxArea) {
+                        maxArea = area;
+                        selected = j;
+                        selectedY = y;
+                    }
+                }
+                
+                sampled[count] = selectedY;
+                rows[count++] = reader.row(selected);
+                previous = selected;
+                previousY = selectedY;
+            }
+            
+            sampled[count] = reader.get(n - 1);
+            rows[count++] = reader.row(n - 1);
+            return new Series(new DoubleColumn(sampled, count), rows, size());
+        }
+        
+        // As CSVViewer.downsampleMinMax
+        private Series downsampleMinMax(int threshold) throws IOException {
+            int buckets = threshold / 2;
+            if (threshold >= size() || buckets < 1) {
+                return new Series(slice(0, size()));
+            }
+            int n = store.presentCount(column);
+            Reader reader = presentValues();
+            if (threshold >= n) {
+                return packed(reader, n);
+            }
+            
+            double[] sampled = new double[2 * buckets];
+            int[] rows = new int[2 * buckets];
+            int count = 0;
+            
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                int start = (int) ((long) n * bucket / buckets);
+                int end = (int) ((long) n * (bucket + 1) / buckets);
+                int minIndex = start;
+                int maxIndex = start;
+                double min = reader.get(start);
+                double max = min;
+                for (int j = start + 1; j < end; j++) {
+                    double value = reader.get(j);
+                    if (value < min) {
+                        min = value;
+                        minIndex = j;
+                    }
+                    if (value > max) {
+                        max = value;
+                        maxIndex = j;
+                    }
+                }
+                
+                sampled[count] = minIndex <= maxIndex ? min : max;
+                rows[count++] = reader.row(Math.min(minIndex, maxIndex));
+                if (minIndex != maxIndex) {
+                    sampled[count] = minIndex < maxIndex ? max : min;
+                    rows[count++] = reader.row(Math.max(minIndex, maxIndex));
+                }
+            }
+            return new Series(new DoubleColumn(sampled, count), rows, size());
+        }
+        
+        // Values a downsampling pass reads by index, and the rows they are in
+        private interface Reader {
+            double get(int index) throws IOException;
+            
+            int row(int index) throws IOException;
+        }
+        
+        // Reads rows through the page that holds the last one read
+        private final class Cursor implements Reader {
+            private DoubleColumn page = new DoubleColumn(0);
+            private int pageStart;
+            
+            @Override
+            public double get(int row) throws IOException {
+                int offset = seek(row);
+                return page.array()[offset];
+            }
+            
+            @Override
+            public int row(int index) {
+                return index;
+            }
+            
+            // First row at or after from that has a value, or size() if none does
+            int nextPresent(int from) throws IOException {
+                while (from < size()) {
+                    int offset = seek(from);
+                    int next = page.nextPresent(offset);
+                    if (next < page.size()) return pageStart + next;
+                    from = pageStart + page.size();
+                }
+                return size();
+            }
+            
+            // Last row at or before from that has a value, or -1 if none does
+            int previousPresent(int from) throws IOException {
+                while (from >= 0) {
+                    int offset = seek(from);
+                    int previous = page.previousPresent(offset);
+                    if (previous >= 0) return pageStart + previous;
+                    from = pageStart - 1;
+                }
+                return -1;
+            }
+            
+            // Offset of row within its page, paging it in if needed
+            private int seek(int row) throws IOException {
+                int offset = row - pageStart;
+                if (offset < 0 || offset >= page.size()) {
+                    int block = store.blockOf(column, row);
+                    page = store.page(column, block);
+                    pageStart = store.blockStart(column, block);
+                    offset = row - pageStart;
+                }
+                return offset;
+            }
+        }
+        
+        // Reads the present values by index as if the gaps were packed out,
+        // stepping from the one read last
+        private final class PackedCursor implements Reader {
+            private final Cursor rows = new Cursor();
+            private int index = -1;
+            private int row = -1;
+            
+            @Override
+            public double get(int index) throws IOException {
+                return rows.get(row(index));
+            }
+            
+            @Override
+            public int row(int index) throws IOException {
+                while (this.index < index) {
+                    row = rows.nextPresent(row + 1);
+                    this.index++;
+                }
+                while (this.index > index) {
+                    row = rows.previousPresent(row - 1);
+                    this.index--;
+                }
+                return row;
+            }
+        }
+    }
+    
+    // Values of a column read a range of rows at a time, so a pass over them
+    // does not need the whole column on the heap
+    private interface ColumnSource {
+        int size();
+        
+        // Rows from (inclusive) to to (exclusive), fewer where the column ends
+        DoubleColumn slice(int from, int to) throws IOException;
+        
+        static ColumnSource of(DoubleColumn column) {
+            return new ColumnSource() {
+                @Override
+                public int size() {
+                    return column.size();
+                }
+                
+                @Override
+                public DoubleColumn slice(int from, int to) {
+                    return column.copyOfRange(from, Math.min(to, column.size()));
+                }
+            };
+        }
+    }
+    
+    // What an export writes for each visible variable
+    private enum ExportContent {
+        RAW("Raw data"),
+        AGGREGATED("Aggregated"),
+        SMOOTHED("Aggregated and smoothed"),
+        DERIVATIVE("Derivative, as displayed");
+        
+        private final String label;
+        
+        ExportContent(String label) {
+            this.label = label;
+        }
+        
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+    
+    // Streams columns to a CSV file, formatting blocks of rows in parallel and
+    // writing them in order; doubles use the shortest digits that parse back
+    private static final class CsvExporter {
+        private static final int ROWS_PER_TASK = 1 << 14;
+        private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+        // Double.toString prints magnitudes in [1e-3, 1e7) without an exponent
+        private static final double PLAIN_MIN = 1e-3;
+        private static final double PLAIN_MAX = 1e7;
+        // Beyond this the mantissa is no longer scaled down by a power of two
+        private static final double SEARCH_MAX = 0x1p52;
+        // Digit strings are kept below this, 18 digits, which fits in a long
+        private static final double DIGITS_LIMIT = 1e18;
+        private static final long[] POWERS_OF_TEN = new long[19];
+        private static final double[] DOUBLE_POWERS_OF_TEN = new double[19];
+        // Tens and ones digit of every number below 100
+        private static final byte[] DIGIT_TENS = new byte[100];
+        private static final byte[] DIGIT_ONES = new byte[100];
+        
+        static {
+            POWERS_OF_TEN[0] = 1;
+            for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+                POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+            }
+            for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+                DOUBLE_POWERS_OF_TEN[i] = POWERS_OF_TEN[i];
+            }
+            for (int i = 0; i < 100; i++) {
+                DIGIT_TENS[i] = (byte) ('0' + i / 10);
+                DIGIT_ONES[i] = (byte) ('0' + i % 10);
+            }
+        }
+        
+        // Writes the columns side by side under the given headers; missing
+        // values, and the last rows of shorter columns, are left empty
+        static void write(File file, List<String> headers, DoubleColumn[] columns) throws IOException {
+            write(file, headers, null, columns);
+        }
+        
+        // Same with the timestamps of the rows as the first column, in ISO
+        // 8601, unless times is null; headers then start with its name
+        static void write(File file, List<String> headers, TimeIndex times, 
+                          DoubleColumn[] columns) throws IOException {
+            ColumnSource[] sources = new ColumnSource[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                sources[j] = ColumnSource.of(columns[j]);
+            }
+            write(file, headers, times, sources);
+        }
+        
+        // Same for columns that are read a block of rows at a time
+        static void write(File file, List<String> headers, TimeIndex times, 
+                          ColumnSource[] columns) throws IOException {
+            int rows = times != null ? times.size() : 0;
+            for (ColumnSource column : columns) {
+                rows = Math.max(rows, column.size());
+            }
+            int blocks = (rows + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+            int maxInFlight = 2 * ForkJoinPool.getCommonPoolParallelism() + 1;
+            
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, 
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                RowBuffer header = new RowBuffer(256);
+                header.putText(String.join(",", headers));
+                header.putBytes(NEWLINE);
+                writeFully(channel, header.toByteBuffer());
+                
+                if (blocks < 2) {
+                    writeFully(channel, formatRows(times, columns, 0, rows));
+                    return;
+                }
+                Deque<ForkJoinTask<ByteBuffer>> pending = new ArrayDeque<>();
+                try {
+                    int next = 0;
+                    while (next < blocks || !pending.isEmpty()) {
+                        while (next < blocks && pending.size() < maxInFlight) {
+                            int from = next * ROWS_PER_TASK;
+                            int to = Math.min(from + ROWS_PER_TASK, rows);
+                            pending.add(ForkJoinPool.commonPool().submit(() -> formatRows(times, columns, from, to)));
+                            next++;
+                        }
+                        writeFully(channel, join(pending.poll()));
+                    }
+                } finally {
+                    pending.forEach(task -> task.cancel(false));
+                }
+            }
+        }
+        
+        private static ByteBuffer formatRows(TimeIndex times, ColumnSource[] columns, 
+                                             int from, int to) throws IOException {
+            DoubleColumn[] slices = new DoubleColumn[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                slices[j] = from < columns[j].size() 
+                    ? columns[j].slice(from, Math.min(to, columns[j].size())) : new DoubleColumn(0);
+            }
+            RowBuffer out = new RowBuffer((to - from) * (columns.length * 12 + (times != null ? 31 : 0) 
+                + NEWLINE.length));
+            int[] fractionDigits = new int[columns.length]; // of the last value per column
+            int missingTime = times != null ? times.firstMissingAtOrAfter(from) : 0;
+            for (int i = 0; i < to - from; i++) {
+                if (times != null) {
+                    int row = from + i;
+                    if (row == times.missingRow(missingTime)) {
+                        missingTime++;
+                    } else if (row < times.size()) {
+                        out.putTimestamp(times.get(row));
+                    }
+                    out.putByte((byte) ',');
+                }
+                for (int j = 0; j < slices.length; j++) {
+                    if (j > 0) out.putByte((byte) ',');
+                    if (i < slices[j].size() && slices[j].isPresent(i)) {
+                        fractionDigits[j] = out.putDouble(slices[j].array()[i], fractionDigits[j]);
+                    }
+                }
+                out.putBytes(NEWLINE);
+            }
+            return out.toByteBuffer();
+        }
+        
+        private static ByteBuffer join(ForkJoinTask<ByteBuffer> task) throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Export interrupted", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+        
+        private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        
+        // Growable byte array the rows of one block are formatted into
+        private static final class RowBuffer {
+            private byte[] bytes;
+            private int size;
+            
+            RowBuffer(int initialCapacity) {
+                bytes = new byte[Math.max(initialCapacity, 64)];
+            }
+            
+            ByteBuffer toByteBuffer() {
+                return ByteBuffer.wrap(bytes, 0, size);
+            }
+            
+            void putByte(byte b) {
+                ensure(1);
+                bytes[size++] = b;
+            }
+            
+            void putBytes(byte[] b) {
+                ensure(b.length);
+                System.arraycopy(b, 0, bytes, size, b.length);
+                size += b.length;
+            }
+            
+            void putText(String text) {
+                putBytes(text.getBytes(StandardCharsets.UTF_8));
+            }
+            
+            void putTimestamp(long nanos) {
+                ensure(30);
+                size = TimestampParser.formatTo(nanos, bytes, size);
+            }
+            
+            // Writes the decimal with the fewest fraction digits that still parses back
+            // to value, starting the search at hint, and returns the digits used
+            int putDouble(double value, int hint) {
+                double magnitude = Math.abs(value);
+                if (magnitude >= PLAIN_MIN && magnitude < SEARCH_MAX) {
+                    int k = Math.min(hint, POWERS_OF_TEN.length - 1);
+                    while (k > 0 && magnitude * DOUBLE_POWERS_OF_TEN[k] >= DIGITS_LIMIT) {
+                        k--; // More digits than any double needs
+                    }
+                    long digits = digitsAt(magnitude, k);
+                    if (digits >= 0) {
+                        for (long shorter; k > 0 && (shorter = digitsAt(magnitude, k - 1)) >= 0; k--) {
+                            digits = shorter;
+                        }
+                    } else {
+                        while (++k < POWERS_OF_TEN.length && (digits = digitsAt(magnitude, k)) < 0) {
+                            // Keep adding digits
+                        }
+                    }
+                    if (digits >= 0) {
+                        if (value < 0) putByte((byte) '-');
+                        if (magnitude < PLAIN_MAX) {
+                            putDecimal((long) magnitude, digits, k);
+                        } else {
+                            putScientific(digits, k);
+                        }
+                        return k;
+                    }
+                }
+                String text = Double.toString(value);
+                ensure(text.length());
+                for (int i = 0; i < text.length(); i++) {
+                    bytes[size++] = (byte) text.charAt(i);
+                }
+                return hint;
+            }
+            
+            // The integer d nearest to v * 10^k for which d / 10^k rounds to v, or -1
+            private static long digitsAt(double magnitude, int k) {
+                double scaled = magnitude * DOUBLE_POWERS_OF_TEN[k];
+                if (scaled >= DIGITS_LIMIT || Math.abs(scaled - Math.rint(scaled)) > scaled * 0x1p-51) return -1;
+                
+                long bits = Double.doubleToRawLongBits(magnitude);
+                int shift = 1075 - (int) (bits >>> 52); // 1..62 in the searched range
+                long mantissa = (bits & 0xFFFFFFFFFFFFFL) | (1L << 52);
+                boolean even = (mantissa & 1) == 0;
+                long unit = 1L << shift;
+                long power = POWERS_OF_TEN[k];
+                long high = Math.multiplyHigh(mantissa, power);
+                long low = mantissa * power;
+                long floor = (high << (64 - shift)) | (low >>> shift);
+                long below = low & (unit - 1);  // v * 10^k - floor, in 2^-shift units
+                long above = unit - below;      // floor + 1 - v * 10^k
+                int lower = Long.compareUnsigned(below << (mantissa == 1L << 52 ? 2 : 1), power);
+                int upper = Long.compareUnsigned(above << 1, power);
+                boolean floorRounds = lower < 0 || lower == 0 && even;
+                boolean ceilingRounds = upper < 0 || upper == 0 && even;
+                if (!ceilingRounds) {
+                    return floorRounds ? floor : -1;
+                }
+                boolean useCeiling = !floorRounds || above < below || above == below && (floor & 1) != 0;
+                return useCeiling ? floor + 1 : floor;
+            }
+            
+            // digits / 10^fractionDigits with at least one digit after the
+            // point; integerPart is that quotient, which for a decimal that
+            // rounds to v is always v truncated
+            private void putDecimal(long integerPart, long digits, int fractionDigits) {
+                ensure(40);
+                putDigits(integerPart, 1);
+                bytes[size++] = '.';
+                putDigits(digits - integerPart * POWERS_OF_TEN[fractionDigits], Math.max(fractionDigits, 1));
+            }
+            
+            // digits / 10^fractionDigits as d.ddddEn, the form Double.toString
+            // uses from 1e7 on
+            private void putScientific(long digits, int fractionDigits) {
+                ensure(40);
+                int exponent = -fractionDigits;
+                while (digits % 10 == 0) {
+                    digits /= 10;
+                    exponent++;
+                }
+                int length = 1;
+                while (length < POWERS_OF_TEN.length && digits >= POWERS_OF_TEN[length]) {
+                    length++;
+                }
+                long leading = digits / POWERS_OF_TEN[length - 1];
+                bytes[size++] = (byte) ('0' + leading);
+                bytes[size++] = '.';
+                putDigits(digits - leading * POWERS_OF_TEN[length - 1], Math.max(length - 1, 1));
+                bytes[size++] = 'E';
+                putDigits(exponent + length - 1, 1);
+            }
+            
+            // Writes value left-padded with zeros to at least width digits.
+            // Four digits are split off per step and written as two pairs
+            // from a table, which keeps the chain of dependent divisions short.
+            private void putDigits(long value, int width) {
+                int length = 1;
+                while (length < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[length]) {
+                    length++;
+                }
+                length = Math.max(length, width);
+                int position = size + length;
+                while (value >= 10_000) {
+                    long quotient = value / 10_000;
+                    int group = (int) (value - quotient * 10_000);
+                    int pair = group / 100;
+                    position -= 4;
+                    bytes[position] = DIGIT_TENS[pair];
+                    bytes[position + 1] = DIGIT_ONES[pair];
+                    bytes[position + 2] = DIGIT_TENS[group - pair * 100];
+                    bytes[position + 3] = DIGIT_ONES[group - pair * 100];
+                    value = quotient;
+                }
+                int rest = (int) value;
+                while (position > size) {
+                    bytes[--position] = (byte) ('0' + rest % 10);
+                    rest /= 10;
+                }
+                size += length;
+            }
+            
+            private void ensure(int extra) {
+                if (size + extra > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+                }
+            }
+        }
+    }
+    
+    // Byte-level CSV tokenizer reporting fields as [start, end) ranges into buffer();
+    // a line break always ends the record, even inside quotes
+    private static final class CsvTokenizer {
+        private static final int BUFFER_SIZE = 1 << 20;
+        
+        private final InputStream in;
+        private byte[] buf;
+        private int pos;
+        private int limit;
+        private boolean endOfInput;
+        private long bufferOffset; // stream offset of buf[0]
+        
+        private int[] fieldStarts = new int[16];
+        private int[] fieldEnds = new int[16];
+        private int fieldCount;
+        private boolean blank;
+        
+        CsvTokenizer(InputStream in) {
+            this.in = in;
+            this.buf = new byte[BUFFER_SIZE];
+        }
+        
+        CsvTokenizer(byte[] buf, int from, int to) {
+            this.in = null;
+            this.buf = buf;
+            this.pos = from;
+            this.limit = to;
+            this.endOfInput = true;
+        }
+        
+        // Advances to the next record; returns false once the input is exhausted
+        boolean nextRecord() throws IOException {
+            while (true) {
+                int next = scanRecord();
+                if (next >= 0) {
+                    pos = next;
+                    return true;
+                }
+                if (endOfInput) {
+                    return false;
+                }
+                fill();
+            }
+        }
+        
+        byte[] buffer() {
+            return buf;
+        }
+        
+        int fieldCount() {
+            return fieldCount;
+        }
+        
+        int fieldStart(int field) {
+            return fieldStarts[field];
+        }
+        
+        int fieldEnd(int field) {
+            return fieldEnds[field];
+        }
+        
+        // True when the record holds nothing but whitespace
+        boolean isBlank() {
+            return blank;
+        }
+        
+        // Number of input bytes consumed up to the end of the current record
+        long offset() {
+            return bufferOffset + pos;
+        }
+        
+        // Decodes a field for the few places that need text, such as the header
+        String fieldString(int field) {
+            String value = new String(buf, fieldStarts[field], fieldEnds[field] - fieldStarts[field], 
+                StandardCharsets.UTF_8);
+            return value.indexOf('"') < 0 ? value : value.replace("\"", "").trim();
+        }
+        
+        // Tokenizes the record at pos and returns the offset just past its line
+        // terminator, or -1 if the buffer does not hold a complete record yet
+        private int scanRecord() {
+            if (pos >= limit) {
+                return -1;
+            }
+            
+            byte[] b = buf;
+            int i = pos;
+            int fieldStart = i;
+            boolean inQuotes = false;
+            boolean nonBlank = false;
+            fieldCount = 0;
+            
+            while (i < limit) {
+                byte c = b[i];
+                if (c == '\n' || c == '\r') {
+                    // A lone \r needs the next byte to tell whether it starts \r\n
+                    if (c == '\r' && i + 1 >= limit && !endOfInput) {
+                        return -1;
+                    }
+                    addField(fieldStart, i);
+                    blank = !nonBlank;
+                    return c == '\r' && i + 1 < limit && b[i + 1] == '\n' ? i + 2 : i + 1;
+                }
+                if (c == '"') {
+                    inQuotes = !inQuotes;
+                } else if (c == ',' && !inQuotes) {
+                    addField(fieldStart, i);
+                    fieldStart = i + 1;
+                } else if ((c & 0xFF) > ' ') {
+                    nonBlank = true;
+                }
+                i++;
+            }
+            
+            if (!endOfInput) {
+                return -1;
+            }
+            // Last record without a trailing line break
+            addField(fieldStart, limit);
+            blank = !nonBlank;
+            return limit;
+        }
+        
+        private void addField(int start, int end) {
+            while (start < end && ((buf[start] & 0xFF) <= ' ' || buf[start] == '"')) start++;
+            while (end > start && ((buf[end - 1] & 0xFF) <= ' ' || buf[end - 1] == '"')) end--;
+            
+            if (fieldCount == fieldStarts.length) {
+                fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+                fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            }
+            fieldStarts[fieldCount] = start;
+            fieldEnds[fieldCount] = end;
+            fieldCount++;
+        }
+        
+        // Moves the unfinished record to the front of the buffer and reads more
+        // bytes behind it, growing the buffer only for records longer than it
+        private void fill() throws IOException {
+            int remaining = limit - pos;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, remaining);
+            } else if (remaining == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            bufferOffset += pos;
+            pos = 0;
+            limit = remaining;
+            
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                endOfInput = true;
+            } else {
+                limit += read;
+            }
+        }
+    }
+    
+    // Parses a number from a byte range without allocating; a false return means
+    // "not a number" so text cells cost no exception. The implementation can be
+    // switched with -Dcsvviewer.numberParser=jdk to compare against the JDK path.
+    private interface NumberParser {
+        String PROPERTY = "csvviewer.numberParser";
+        
+        boolean parse(byte[] buf, int start, int end);
+        
+        // Result of the last successful parse
+        double value();
+        
+        static NumberParser create() {
+            return "jdk".equalsIgnoreCase(System.getProperty(PROPERTY)) 
+                ? new JdkNumberParser() : new FastNumberParser();
+        }
+    }
+    
+    // Reference implementation: Double.parseDouble on a String copy of the field
+    private static final class JdkNumberParser implements NumberParser {
+        private double value;
+        
+        @Override
+        public boolean parse(byte[] buf, int start, int end) {
+            try {
+                value = Double.parseDouble(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        
+        @Override
+        public double value() {
+            return value;
+        }
+    }
+    
+    // Parses [sign] digits [. digits] [e [sign] digits] in place, falling back to
+    // Double.parseDouble for long mantissas; rejects text without throwing
+    private static final class FastNumberParser implements NumberParser {
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+        private static final long MAX_EXACT_MANTISSA = 1L << 53;
+        private static final int MAX_MANTISSA_DIGITS = 18;
+        
+        private final JdkNumberParser fallback = new JdkNumberParser();
+        private double value;
+        
+        @Override
+        public boolean parse(byte[] buf, int start, int end) {
+            int i = start;
+            boolean negative = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+                negative = buf[i] == '-';
+                i++;
+            }
+            if (i == end) {
+                return false;
+            }
+            
+            byte first = buf[i];
+            if (first == 'N' || first == 'I' || (first == '0' && i + 1 < end && (buf[i + 1] | 0x20) == 'x')) {
+                // NaN, Infinity and hex literals are rare enough for the JDK
+                return parseRare(buf, start, end);
+            }
+            
+            long mantissa = 0;
+            int digits = 0;        // significant digits kept in the mantissa
+            int exponent = 0;      // power of ten applied to the mantissa
+            boolean sawDigit = false;
+            boolean truncated = false;
+            
+            for (; i < end && isDigit(buf[i]); i++) {
+                sawDigit = true;
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (buf[i] - '0');
+                    if (mantissa != 0) digits++;
+                } else {
+                    exponent++;
+                    truncated |= buf[i] != '0';
+                }
+            }
+            if (i < end && buf[i] == '.') {
+                for (i++; i < end && isDigit(buf[i]); i++) {
+                    sawDigit = true;
+                    if (digits < MAX_MANTISSA_DIGITS) {
+                        mantissa = mantissa * 10 + (buf[i] - '0');
+                        if (mantissa != 0) digits++;
+                        exponent--;
+                    } else {
+                        truncated |= buf[i] != '0';
+                    }
+                }
+            }
+            if (!sawDigit) {
+                return false;
+            }
+            
+            if (i < end && (buf[i] | 0x20) == 'e') {
+                i++;
+                boolean negativeExponent = false;
+                if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+                    negativeExponent = buf[i] == '-';
+                    i++;
+                }
+                if (i == end || !isDigit(buf[i])) {
+                    return false;
+                }
+                int explicitExponent = 0;
+                for (; i < end && isDigit(buf[i]); i++) {
+                    if (explicitExponent < 100000) {
+                        explicitExponent = explicitExponent * 10 + (buf[i] - '0');
+                    }
+                }
+                exponent += negativeExponent ? -explicitExponent : explicitExponent;
+            }
+            
+            // Double.parseDouble ignores a float/double type suffix
+            if (i == end - 1 && ((buf[i] | 0x20) == 'd' || (buf[i] | 0x20) == 'f')) {
+                i++;
+            }
+            if (i != end) {
+                return false;
+            }
+            
+            if (mantissa == 0 && !truncated) {
+                value = negative ? -0.0 : 0.0;
+                return true;
+            }
+            if (truncated || mantissa > MAX_EXACT_MANTISSA 
+                    || exponent < -POWERS_OF_TEN.length + 1 || exponent > POWERS_OF_TEN.length - 1) {
+                // The syntax is valid, so the JDK only has to round correctly
+                return parseRare(buf, start, end);
+            }
+            
+            double result = exponent >= 0 
+                ? mantissa * POWERS_OF_TEN[exponent] 
+                : mantissa / POWERS_OF_TEN[-exponent];
+            value = negative ? -result : result;
+            return true;
+        }
+        
+        @Override
+        public double value() {
+            return value;
+        }
+        
+        private boolean parseRare(byte[] buf, int start, int end) {
+            if (!fallback.parse(buf, start, end)) {
+                return false;
+            }
+            value = fallback.value();
+            return true;
+        }
+        
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+    }
+    
+    // Parses ISO-8601 or epoch-number timestamps from a byte range into epoch
+    // nanoseconds, in a form detect() fixes per column
+    private static final class TimestampParser {
+        static final long ISO = 0; // unit of the ISO-8601 form
+        static final long NOT_A_TIMESTAMP = -1;
+        // Epoch units by their usual header suffix
+        private static final String[] UNIT_SUFFIXES = {"s", "ms", "us", "ns"};
+        private static final long[] UNITS = {1_000_000_000L, 1_000_000L, 1_000L, 1L};
+        // Header words that mark a numeric column as epoch time
+        private static final Set<String> TIME_WORDS = new HashSet<>(
+            Arrays.asList("time", "timestamp", "datetime", "date", "epoch", "ts"));
+        private static final long NANOS_PER_SECOND = 1_000_000_000L;
+        private static final long SECONDS_PER_DAY = 86_400;
+        // 1973-03-03, the first date with nine digits of epoch seconds
+        private static final long MIN_INFERRED_NANOS = 100_000_000L * NANOS_PER_SECOND;
+        // Years whose every instant fits in a long of nanoseconds
+        private static final int MIN_YEAR = 1678;
+        private static final int MAX_YEAR = 2261;
+        private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+        
+        private final long unitNanos; // ISO, or nanoseconds per unit of an epoch number
+        private long value;
+        
+        TimestampParser(long unitNanos) {
+            this.unitNanos = unitNanos;
+        }
+        
+        // Form of a column from its header and first value buf[start, end): ISO, the
+        // unit of an epoch number of a date after 1973, or NOT_A_TIMESTAMP
+        static long detect(String header, byte[] buf, int start, int end) {
+            if (new TimestampParser(ISO).parse(buf, start, end)) {
+                return ISO;
+            }
+            String[] words = header.toLowerCase(Locale.ROOT).split("[^a-z0-9]+");
+            boolean timeWord = false;
+            for (String word : words) {
+                timeWord |= TIME_WORDS.contains(word);
+            }
+            if (!timeWord) return NOT_A_TIMESTAMP;
+            
+            int integerDigits = 0;
+            while (start + integerDigits < end && FastNumberParser.isDigit(buf[start + integerDigits])) {
+                integerDigits++;
+            }
+            long unit = UNITS[Math.min(Math.max(integerDigits - 9, 0) / 3, UNITS.length - 1)];
+            boolean explicitUnit = false;
+            for (int i = 0; i < UNIT_SUFFIXES.length; i++) {
+                if (words.length > 1 && words[words.length - 1].equals(UNIT_SUFFIXES[i])) {
+                    unit = UNITS[i];
+                    explicitUnit = true;
+                }
+            }
+            TimestampParser parser = new TimestampParser(unit);
+            if (!parser.parse(buf, start, end) || !explicitUnit && parser.value() < MIN_INFERRED_NANOS) {
+                return NOT_A_TIMESTAMP;
+            }
+            return unit;
+        }
+        
+        long getUnitNanos() {
+            return unitNanos;
+        }
+        
+        boolean parse(byte[] buf, int start, int end) {
+            return unitNanos == ISO ? parseIso(buf, start, end) : parseEpoch(buf, start, end);
+        }
+        
+        // Result of the last successful parse, in nanoseconds since the epoch
+        long value() {
+            return value;
+        }
+        
+        // digits [. digits] in units of unitNanos; fraction digits beyond
+        // the nanosecond are dropped
+        private boolean parseEpoch(byte[] buf, int start, int end) {
+            int i = start;
+            long units = 0;
+            for (; i < end && FastNumberParser.isDigit(buf[i]); i++) {
+                if (units >= Long.MAX_VALUE / 10) return false;
+                units = units * 10 + (buf[i] - '0');
+            }
+            if (i == start || units >= Long.MAX_VALUE / unitNanos) return false;
+            
+            long nanos = units * unitNanos;
+            if (i < end && buf[i] == '.') {
+                long fraction = 0;
+                long scale = 1;
+                for (i++; i < end && FastNumberParser.isDigit(buf[i]); i++) {
+                    if (scale < NANOS_PER_SECOND) {
+                        fraction = fraction * 10 + (buf[i] - '0');
+                        scale *= 10;
+                    }
+                }
+                nanos += fraction * unitNanos / scale;
+            }
+            if (i != end) return false;
+            value = nanos;
+            return true;
+        }
+        
+        private boolean parseIso(byte[] buf, int start, int end) {
+            if (end - start < 10 || buf[start + 4] != '-' || buf[start + 7] != '-') return false;
+            int year = digits(buf, start, 4);
+            int month = digits(buf, start + 5, 2);
+            int day = digits(buf, start + 8, 2);
+            if (year < MIN_YEAR || year > MAX_YEAR || month < 1 || month > 12 || day < 1
+                    || day > DAYS_IN_MONTH[month - 1] || month == 2 && day == 29 && !isLeapYear(year)) {
+                return false;
+            }
+            long seconds = epochDay(year, month, day) * SECONDS_PER_DAY;
+            long nanos = 0;
+            
+            int i = start + 10;
+            if (i < end) {
+                if (buf[i] != 'T' && buf[i] != ' ' || end - i < 6 || buf[i + 3] != ':') return false;
+                int hour = digits(buf, i + 1, 2);
+                int minute = digits(buf, i + 4, 2);
+                int second = 0;
+                i += 6;
+                if (i < end && buf[i] == ':') {
+                    if (end - i < 3) return false;
+                    second = digits(buf, i + 1, 2);
+                    i += 3;
+                    if (i < end && (buf[i] == '.' || buf[i] == ',')) {
+                        long scale = NANOS_PER_SECOND;
+                        int fractionStart = ++i;
+                        for (; i < end && FastNumberParser.isDigit(buf[i]); i++) {
+                            if (scale > 1) {
+                                scale /= 10;
+                                nanos += (buf[i] - '0') * scale;
+                            }
+                        }
+                        if (i == fractionStart) return false;
+                    }
+                }
+                if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) return false;
+                seconds += hour * 3600 + minute * 60 + second;
+                
+                if (i < end && buf[i] == 'Z') {
+                    i++;
+                } else if (i < end && (buf[i] == '+' || buf[i] == '-')) {
+                    int sign = buf[i] == '-' ? -1 : 1;
+                    int offsetEnd = end - i == 6 && buf[i + 3] == ':' ? i + 6 : end - i == 5 || end - i == 3 ? end : -1;
+                    if (offsetEnd < 0) return false;
+                    int offsetHours = digits(buf, i + 1, 2);
+                    int offsetMinutes = offsetEnd - i == 3 ? 0 : digits(buf, offsetEnd - 2, 2);
+                    if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) return false;
+                    seconds -= sign * (offsetHours * 3600 + offsetMinutes * 60);
+                    i = offsetEnd;
+                }
+            }
+            if (i != end || seconds > Long.MAX_VALUE / NANOS_PER_SECOND - 1
+                    || seconds < Long.MIN_VALUE / NANOS_PER_SECOND + 1) {
+                return false;
+            }
+            value = seconds * NANOS_PER_SECOND + nanos;
+            return true;
+        }
+        
+        // The count decimal digits at buf[start], or -1 if one is not a digit
+        private static int digits(byte[] buf, int start, int count) {
+            int result = 0;
+            for (int i = start; i < start + count; i++) {
+                if (!FastNumberParser.isDigit(buf[i])) return -1;
+                result = result * 10 + (buf[i] - '0');
+            }
+            return result;
+        }
+        
+        private static boolean isLeapYear(int year) {
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+        }
+        
+        // Days from 1970-01-01 to the given proleptic Gregorian date
+        // (Hinnant's days_from_civil)
+        private static long epochDay(int year, int month, int day) {
+            long y = month <= 2 ? year - 1 : year;
+            long era = Math.floorDiv(y, 400);
+            long yearOfEra = y - era * 400;
+            long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+            long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+        
+        // ISO-8601 text of a timestamp in UTC, with the fraction of a second
+        // shown to the millisecond, microsecond or nanosecond as needed
+        static String format(long nanos) {
+            byte[] out = new byte[32];
+            int length = formatTo(nanos, out, 0);
+            return new String(out, 0, length, StandardCharsets.US_ASCII);
+        }
+        
+        // Writes format(nanos) to out at position, which needs 30 bytes of
+        // room, and returns the position after it
+        static int formatTo(long nanos, byte[] out, int position) {
+            long seconds = Math.floorDiv(nanos, NANOS_PER_SECOND);
+            int fraction = (int) Math.floorMod(nanos, NANOS_PER_SECOND);
+            long days = Math.floorDiv(seconds, SECONDS_PER_DAY);
+            int secondOfDay = (int) Math.floorMod(seconds, SECONDS_PER_DAY);
+            
+            // Hinnant's civil_from_days
+            long z = days + 719468;
+            long era = Math.floorDiv(z, 146097);
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long shiftedMonth = (5 * dayOfYear + 2) / 153;
+            int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+            int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+            int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+            
+            position = putDigits(year, 4, out, position);
+            out[position++] = '-';
+            position = putDigits(month, 2, out, position);
+            out[position++] = '-';
+            position = putDigits(day, 2, out, position);
+            out[position++] = 'T';
+            position = putDigits(secondOfDay / 3600, 2, out, position);
+            out[position++] = ':';
+            position = putDigits(secondOfDay / 60 % 60, 2, out, position);
+            out[position++] = ':';
+            position = putDigits(secondOfDay % 60, 2, out, position);
+            if (fraction != 0) {
+                out[position++] = '.';
+                if (fraction % 1_000_000 == 0) {
+                    position = putDigits(fraction / 1_000_000, 3, out, position);
+                } else if (fraction % 1_000 == 0) {
+                    position = putDigits(fraction / 1_000, 6, out, position);
+                } else {
+                    position = putDigits(fraction, 9, out, position);
+                }
+            }
+            out[position++] = 'Z';
+            return position;
+        }
+        
+        private static int putDigits(int value, int width, byte[] out, int position) {
+            for (int i = position + width - 1; i >= position; i--) {
+                out[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return position + width;
+        }
+    }
+    
+    // An aggregation setting: block averaging over a fixed window, a
+    // shape-preserving downsampler with a target point count, or resampling
+    // into time buckets reduced by an Aggregator
+    private static final class Aggregation {
+        enum Mode { AVERAGE, LTTB, MIN_MAX, TIME_BUCKET }
+        
+        static final Aggregation NONE = new Aggregation(Mode.AVERAGE, 1);
+        private static final int[] AVERAGE_WINDOWS = {2, 5, 10, 25, 100, 1000, 10000};
+        private static final int[] LTTB_POINTS = {500, 1000, 2000};
+        private static final int[] MIN_MAX_POINTS = {1000, 2000};
+        // Bucket widths offered for files with a time column: 1 s, 1 min, 1 h, 1 d
+        static final long[] BUCKETS = {1_000_000_000L, 60_000_000_000L, 3_600_000_000_000L, 86_400_000_000_000L};
+        private static final String[] BUCKET_UNITS = {"s", "min", "h", "d"};
+        private static final String[] BUCKET_SUFFIXES = {"s", "m", "h", "d"};
+        static final Aggregation[] OPTIONS = options(false);
+        static final Aggregation[] TIMED_OPTIONS = options(true);
+        
+        private final Mode mode;
+        private final int size; // window for AVERAGE, target point count for LTTB and MIN_MAX
+        private final long bucketNanos; // bucket width for TIME_BUCKET
+        private final Aggregator aggregator; // for TIME_BUCKET, null otherwise
+        
+        Aggregation(Mode mode, int size) {
+            this(mode, size, 0, null);
+        }
+        
+        Aggregation(long bucketNanos, Aggregator aggregator) {
+            this(Mode.TIME_BUCKET, 0, bucketNanos, aggregator);
+        }
+        
+        private Aggregation(Mode mode, int size, long bucketNanos, Aggregator aggregator) {
+            this.mode = mode;
+            this.size = size;
+            this.bucketNanos = bucketNanos;
+            this.aggregator = aggregator;
+        }
+        
+        // The settings offered in the menus; time buckets only with a time column
+        private static Aggregation[] options(boolean timed) {
+            List<Aggregation> options = new ArrayList<>();
+            options.add(NONE);
+            for (int window : AVERAGE_WINDOWS) {
+                options.add(new Aggregation(Mode.AVERAGE, window));
+            }
+            for (int points : LTTB_POINTS) {
+                options.add(new Aggregation(Mode.LTTB, points));
+            }
+            for (int points : MIN_MAX_POINTS) {
+                options.add(new Aggregation(Mode.MIN_MAX, points));
+            }
+            if (timed) {
+                for (long bucket : BUCKETS) {
+                    for (Aggregator aggregator : Aggregator.values()) {
+                        options.add(new Aggregation(bucket, aggregator));
+                    }
+                }
+            }
+            return options.toArray(new Aggregation[0]);
+        }
+        
+        // Parses a bucket width such as 1s, 15m, 1h or 1d, or returns -1
+        static long parseBucket(String text) {
+            for (int i = 0; i < BUCKET_SUFFIXES.length; i++) {
+                if (text.length() > 1 && text.endsWith(BUCKET_SUFFIXES[i])) {
+                    try {
+                        long count = Long.parseLong(text.substring(0, text.length() - 1));
+                        return count > 0 && count <= Long.MAX_VALUE / BUCKETS[i] ? count * BUCKETS[i] : -1;
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+        
+        // A bucket width in the largest unit that divides it, e.g. "15 min"
+        static String formatBucket(long nanos) {
+            for (int i = BUCKETS.length - 1; i > 0; i--) {
+                if (nanos % BUCKETS[i] == 0) {
+                    return nanos / BUCKETS[i] + " " + BUCKET_UNITS[i];
+                }
+            }
+            return nanos % BUCKETS[0] == 0 ? nanos / BUCKETS[0] + " " + BUCKET_UNITS[0] : nanos / 1e9 + " s";
+        }
+        
+        Mode getMode() {
+            return mode;
+        }
+        
+        int getSize() {
+            return size;
+        }
+        
+        long getBucketNanos() {
+            return bucketNanos;
+        }
+        
+        Aggregator getAggregator() {
+            return aggregator;
+        }
+        
+        boolean isNone() {
+            return mode == Mode.AVERAGE && size <= 1;
+        }
+        
+        boolean isTimeBucket() {
+            return mode == Mode.TIME_BUCKET;
+        }
+        
+        boolean preservesShape() {
+            return mode == Mode.LTTB || mode == Mode.MIN_MAX;
+        }
+        
+        // Number of points produced from a series of n points; for time
+        // buckets, which depend on the timestamps, an upper bound
+        int outputSize(int n) {
+            if (mode == Mode.AVERAGE) {
+                return size <= 1 ? n : (n + size - 1) / size;
+            }
+            if (mode == Mode.TIME_BUCKET) {
+                return n;
+            }
+            return n <= size ? n : (mode == Mode.MIN_MAX ? size / 2 * 2 : size);
+        }
+        
+        // Same for the rows of times, which bound the number of time buckets
+        int outputSize(int n, TimeIndex times) {
+            if (mode == Mode.TIME_BUCKET) {
+                return times != null ? Math.min(n, times.bucketCount(bucketNanos)) : n;
+            }
+            return outputSize(n);
+        }
+        
+        String describe() {
+            switch (mode) {
+                case LTTB: return String.format("LTTB downsampling to %d points", size);
+                case MIN_MAX: return String.format("Min/max downsampling to %d points", size);
+                case TIME_BUCKET: return String.format("%s per %s bucket", aggregator, formatBucket(bucketNanos));
+                default: return String.format("%d-point averaging", size);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            switch (mode) {
+                case LTTB: return "LTTB " + size + " Points";
+                case MIN_MAX: return "Min/Max " + size + " Points";
+                case TIME_BUCKET: return formatBucket(bucketNanos) + " " + aggregator;
+                default: return size <= 1 ? "None (1)" : size + " Points";
+            }
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Aggregation)) return false;
+            Aggregation other = (Aggregation) o;
+            return mode == other.mode && size == other.size && bucketNanos == other.bucketNanos 
+                && aggregator == other.aggregator;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(mode, size, bucketNanos, aggregator);
+        }
+    }
+    
+    // How the present values of one time bucket are reduced to one. A bucket
+    // without any is missing, except for COUNT, which is 0 there.
+    private enum Aggregator {
+        MEAN("Mean") {
+            @Override
+            double reduce(Resampler.Bucket bucket) {
+                return bucket.sum / bucket.count;
+            }
+        },
+        MIN("Min") {
+            @Override
+            double reduce(Resampler.Bucket bucket) {
+                return bucket.min;
+            }
+        },
+        MAX("Max") {
+            @Override
+            double reduce(Resampler.Bucket bucket) {
+                return bucket.max;
+            }
+        },
+        SUM("Sum") {
+            @Override
+            double reduce(Resampler.Bucket bucket) {
+                return bucket.sum;
+            }
+        },
+        COUNT("Count") {
+            @Override
+            double reduce(Resampler.Bucket bucket) {
+                return bucket.count;
+            }
+        },
+        FIRST("First") {
+            @Override
+            double reduce(Resampler.Bucket bucket) {
+                return bucket.first;
+            }
+        },
+        LAST("Last") {
+            @Override
+            double reduce(Resampler.Bucket bucket) {
+                return bucket.last;
+            }
+        },
+        STDDEV("Std Dev") {
+            // Population standard deviation, as in the variable analysis
+            @Override
+            double reduce(Resampler.Bucket bucket) {
+                return Math.sqrt(bucket.m2 / bucket.count);
+            }
+        };
+        
+        private final String label;
+        
+        Aggregator(String label) {
+            this.label = label;
+        }
+        
+        abstract double reduce(Resampler.Bucket bucket);
+        
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+    
+    // Groups rows into time buckets aligned to the epoch and reduces each bucket
+    // with an Aggregator, placing its point at the bucket's first row
+    private static final class Resampler {
+        private static final int SLICE_ROWS = 1 << 16;
+        
+        // Running state of the current bucket
+        static final class Bucket {
+            int count;
+            double sum;
+            double min;
+            double max;
+            double first;
+            double last;
+            double mean; // Welford's running mean and sum of squared deviations
+            double m2;
+            
+            void add(double value) {
+                if (count == 0) {
+                    min = value;
+                    max = value;
+                    first = value;
+                } else {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                last = value;
+                count++;
+                sum += value;
+                double delta = value - mean;
+                mean += delta / count;
+                m2 += delta * (value - mean);
+            }
+            
+            void clear() {
+                count = 0;
+                sum = 0;
+                mean = 0;
+                m2 = 0;
+            }
+        }
+        
+        private final TimeIndex times;
+        private final long bucketNanos;
+        private final Aggregator aggregator; // null when only the bucket starts are wanted
+        private final Bucket bucket = new Bucket();
+        private final DoubleColumn values = new DoubleColumn();
+        private final TimeIndex starts = new TimeIndex();
+        private int[] rows = new int[16];
+        private int buckets;
+        private long key; // bucket of the current run, valid while buckets > 0
+        private int missingTime; // index of the next row without a timestamp
+        
+        private Resampler(TimeIndex times, long bucketNanos, Aggregator aggregator) {
+            this.times = times;
+            this.bucketNanos = bucketNanos;
+            this.aggregator = aggregator;
+        }
+        
+        static Series resample(TimeIndex times, DoubleColumn column, Aggregation aggregation) {
+            Resampler resampler = new Resampler(times, aggregation.getBucketNanos(), aggregation.getAggregator());
+            resampler.accept(column, 0, Math.min(column.size(), times.size()));
+            return resampler.finish(column.size());
+        }
+        
+        static Series resample(TimeIndex times, ColumnSource column, Aggregation aggregation) throws IOException {
+            Resampler resampler = new Resampler(times, aggregation.getBucketNanos(), aggregation.getAggregator());
+            int n = Math.min(column.size(), times.size());
+            for (int from = 0; from < n; from += SLICE_ROWS) {
+                DoubleColumn slice = column.slice(from, Math.min(from + SLICE_ROWS, n));
+                resampler.accept(slice, from, slice.size());
+            }
+            return resampler.finish(column.size());
+        }
+        
+        // Start time of every bucket resample() produces from times, for
+        // writing the resampled columns with their time column
+        static TimeIndex bucketStarts(TimeIndex times, long bucketNanos) {
+            Resampler resampler = new Resampler(times, bucketNanos, null);
+            resampler.accept(null, 0, times.size());
+            resampler.finish(times.size());
+            return resampler.starts;
+        }
+        
+        // Adds the first count rows of slice, which start at row firstRow
+        private void accept(DoubleColumn slice, int firstRow, int count) {
+            double[] v = slice != null ? slice.array() : null;
+            missingTime = Math.max(missingTime, times.firstMissingAtOrAfter(firstRow));
+            int nextMissing = times.missingRow(missingTime);
+            for (int i = 0; i < count; i++) {
+                int row = firstRow + i;
+                if (row == nextMissing) {
+                    nextMissing = times.missingRow(++missingTime);
+                    continue;
+                }
+                long rowKey = Math.floorDiv(times.get(row), bucketNanos);
+                if (buckets == 0 || rowKey != key) {
+                    emit();
+                    if (buckets == rows.length) {
+                        rows = Arrays.copyOf(rows, buckets * 2);
+                    }
+                    rows[buckets++] = row;
+                    key = rowKey;
+                    if (aggregator == null) {
+                        starts.add(rowKey * bucketNanos);
+                    }
+                }
+                if (v != null && slice.isPresent(i)) {
+                    bucket.add(v[i]);
+                }
+            }
+        }
+        
+        // Writes the reduced value of the current bucket, if there is one
+        private void emit() {
+            if (aggregator == null || values.size() == buckets) return;
+            if (bucket.count > 0 || aggregator == Aggregator.COUNT) {
+                values.add(aggregator.reduce(bucket));
+            } else {
+                values.addMissing();
+            }
+            bucket.clear();
+        }
+        
+        private Series finish(int sourceSize) {
+            emit();
+            values.trimToSize();
+            starts.trimToSize();
+            return new Series(values, Arrays.copyOf(rows, buckets), sourceSize);
+        }
+    }
+    
+    // A smoothing setting applied to a processed series: a centered rolling
+    // mean or standard deviation over a window of any number of points, each
+    // answered in O(1) from the prefix sums of the series, or an
+    // exponentially weighted moving average whose smoothing factor follows
+    // from its span, 2 / (span + 1). Rows without a value stay missing.
+    private static final class Smoothing {
+        enum Mode { NONE, MEAN, STDDEV, EWMA }
+        
+        static final Smoothing NONE = new Smoothing(Mode.NONE, 1);
+        static final Smoothing DEFAULT = new Smoothing(Mode.MEAN, 3);
+        static final Smoothing[] OPTIONS = {
+            NONE, DEFAULT, new Smoothing(Mode.MEAN, 10), new Smoothing(Mode.MEAN, 100), 
+            new Smoothing(Mode.MEAN, 1000), new Smoothing(Mode.STDDEV, 100), new Smoothing(Mode.STDDEV, 1000), 
+            new Smoothing(Mode.EWMA, 10), new Smoothing(Mode.EWMA, 100)
+        };
+        
+        private final Mode mode;
+        private final int window; // points in the window, or the span for EWMA
+        
+        Smoothing(Mode mode, int window) {
+            this.mode = mode;
+            this.window = window;
+        }
+        
+        // Parses mean:N, stddev:N or ewma:N, a bare N for mean:N, or none;
+        // returns null for anything else
+        static Smoothing parse(String spec) {
+            String lower = spec.trim().toLowerCase(Locale.ROOT);
+            if (lower.equals("none")) return NONE;
+            int colon = lower.indexOf(':');
+            Mode mode;
+            switch (colon < 0 ? "mean" : lower.substring(0, colon)) {
+                case "mean": mode = Mode.MEAN; break;
+                case "std":
+                case "stddev": mode = Mode.STDDEV; break;
+                case "ewma": mode = Mode.EWMA; break;
+                default: return null;
+            }
+            try {
+                int window = Integer.parseInt(lower.substring(colon + 1));
+                return window > 0 ? new Smoothing(mode, window) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        
+        Mode getMode() {
+            return mode;
+        }
+        
+        boolean isNone() {
+            return mode == Mode.NONE || mode == Mode.MEAN && window <= 1;
+        }
+        
+        // Whether the result is in the units and range of the values it came
+        // from; a rolling standard deviation is scaled on its own
+        boolean keepsScale() {
+            return mode != Mode.STDDEV;
+        }
+        
+        Series apply(Series series) {
+            if (isNone() || series.size() == 0) return series;
+            DoubleColumn values = series.getValues();
+            switch (mode) {
+                case EWMA: return series.withValues(ewma(values, 2.0 / (window + 1)));
+                case STDDEV: return series.withValues(rollingDeviation(values, series.prefixSums(), window));
+                default: return series.withValues(rollingMean(values, series.prefixSums(), window));
+            }
+        }
+        
+        // First row of the window centered on row i; it ends window rows later
+        private static int windowStart(int i, int window) {
+            return i - (window - 1) / 2;
+        }
+        
+        // Windows reaching past either end are cut short there
+        private static DoubleColumn rollingMean(DoubleColumn data, PrefixSums sums, int window) {
+            int n = data.size();
+            double[] smoothed = new double[n];
+            for (int i = data.nextPresent(0); i < n; i = data.nextPresent(i + 1)) {
+                int start = windowStart(i, window);
+                smoothed[i] = sums.mean(Math.max(0, start), Math.min(n, start + window));
+            }
+            return new DoubleColumn(smoothed, data.validity(), n);
+        }
+        
+        // Sample standard deviation; missing where the window holds fewer
+        // than two values
+        private static DoubleColumn rollingDeviation(DoubleColumn data, PrefixSums sums, int window) {
+            int n = data.size();
+            DoubleColumn deviations = new DoubleColumn(n);
+            for (int i = 0; i < n; i++) {
+                int start = windowStart(i, window);
+                int from = Math.max(0, start);
+                int to = Math.min(n, start + window);
+                if (data.isPresent(i) && sums.count(from, to) > 1) {
+                    deviations.add(Math.sqrt(sums.variance(from, to)));
+                } else {
+                    deviations.addMissing();
+                }
+            }
+            return deviations;
+        }
+        
+        // Starts at the first value and carries across gaps
+        private static DoubleColumn ewma(DoubleColumn data, double alpha) {
+            int n = data.size();
+            double[] v = data.array();
+            double[] smoothed = new double[n];
+            double average = Double.NaN;
+            for (int i = data.nextPresent(0); i < n; i = data.nextPresent(i + 1)) {
+                average = Double.isNaN(average) ? v[i] : average + alpha * (v[i] - average);
+                smoothed[i] = average;
+            }
+            return new DoubleColumn(smoothed, data.validity(), n);
+        }
+        
+        // The setting as parse accepts it
+        String spec() {
+            switch (mode) {
+                case NONE: return "none";
+                case STDDEV: return "stddev:" + window;
+                case EWMA: return "ewma:" + window;
+                default: return "mean:" + window;
+            }
+        }
+        
+        String describe() {
+            switch (mode) {
+                case NONE: return "none";
+                case STDDEV: return String.format("%d-point rolling standard deviation", window);
+                case EWMA: return String.format("exponentially weighted moving average, span %d", window);
+                default: return String.format("%d-point rolling mean", window);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            switch (mode) {
+                case NONE: return "None";
+                case STDDEV: return "Rolling Std Dev " + window + " Points";
+                case EWMA: return "EWMA Span " + window;
+                default: return "Rolling Mean " + window + " Points";
+            }
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Smoothing)) return false;
+            Smoothing other = (Smoothing) o;
+            return isNone() ? other.isNone() : mode == other.mode && window == other.window;
+        }
+        
+        @Override
+        public int hashCode() {
+            return isNone() ? 0 : Objects.hash(mode, window);
+        }
+    }
+    
+    // Running totals of a column's present values, their squares and their count,
+    // giving the mean and variance of any range of rows in O(1)
+    private static final class PrefixSums {
+        private final double shift;
+        private final double[] sums;    // sums[i]: total over rows before i
+        private final double[] squares;
+        private final int[] counts;     // null while every row has a value
+        
+        PrefixSums(DoubleColumn column) {
+            int n = column.size();
+            double[] v = column.array();
+            int first = column.nextPresent(0);
+            shift = first < n ? v[first] : 0;
+            sums = new double[n + 1];
+            squares = new double[n + 1];
+            counts = column.hasMissing() ? new int[n + 1] : null;
+            double sum = 0;
+            double sumError = 0;
+            double square = 0;
+            double squareError = 0;
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (counts == null || column.isPresent(i)) {
+                    double x = v[i] - shift;
+                    double y = x - sumError;
+                    double t = sum + y;
+                    sumError = (t - sum) - y;
+                    sum = t;
+                    y = x * x - squareError;
+                    t = square + y;
+                    squareError = (t - square) - y;
+                    square = t;
+                    count++;
+                }
+                sums[i + 1] = sum;
+                squares[i + 1] = square;
+                if (counts != null) counts[i + 1] = count;
+            }
+        }
+        
+        // Values present in rows from (inclusive) to to (exclusive)
+        int count(int from, int to) {
+            return counts != null ? counts[to] - counts[from] : to - from;
+        }
+        
+        // NaN for a range without values
+        double mean(int from, int to) {
+            int count = count(from, to);
+            return count > 0 ? shift + (sums[to] - sums[from]) / count : Double.NaN;
+        }
+        
+        // Sample variance; NaN with fewer than two values
+        double variance(int from, int to) {
+            int count = count(from, to);
+            if (count < 2) return Double.NaN;
+            double sum = sums[to] - sums[from];
+            double deviations = squares[to] - squares[from] - sum * sum / count;
+            return Math.max(0, deviations / (count - 1));
+        }
+        
+        long estimateBytes() {
+            return 16L * sums.length + (counts != null ? 4L * counts.length : 0);
+        }
+    }
+    
+    // A processed series ready for plotting. Averaged series are evenly spaced
+    // across the plot; downsamplers that keep irregularly spaced points also
+    // record the source row of every value so it is drawn where it came from.
+    private static final class Series {
+        private final DoubleColumn values;
+        private final int[] rows;     // null when evenly spaced
+        private final int sourceSize; // rows in the series the points came from
+        private ColumnPyramid index;  // range min/max for zoomed views, built on demand
+        private PrefixSums prefixSums; // for rolling windows, built on demand
+        
+        Series(DoubleColumn values) {
+            this(values, null, values.size());
+        }
+        
+        Series(DoubleColumn values, int[] rows, int sourceSize) {
+            this.values = values;
+            this.rows = rows;
+            this.sourceSize = sourceSize;
+        }
+        
+        DoubleColumn getValues() {
+            return values;
+        }
+        
+        int size() {
+            return values.size();
+        }
+        
+        // Source row of point i
+        int row(int i) {
+            return rows != null ? rows[i] : i;
+        }
+        
+        // Heap used by the arrays behind this series; one that wraps a raw
+        // column shares its values and range index and owns only the rest
+        long estimateBytes(boolean sharesSource) {
+            long prefixBytes = prefixSums != null ? prefixSums.estimateBytes() : 0;
+            if (sharesSource) return prefixBytes;
+            return 8L * values.array().length + (rows != null ? 4L * rows.length : 0) 
+                + (index != null ? index.estimateBytes() : 0) + prefixBytes;
+        }
+        
+        // Same positions, different values (e.g. after smoothing)
+        Series withValues(DoubleColumn newValues) {
+            return new Series(newValues, rows, sourceSize);
+        }
+        
+        // Position of point i along the plot, from 0 (first row) to 1 (last row)
+        double position(int i) {
+            long row = rows != null ? rows[i] : i;
+            int span = rows != null ? sourceSize : values.size();
+            return (double) row / Math.max(1, span - 1);
+        }
+        
+        // First point at or after the given position, or size() if there is none
+        int indexAtOrAfter(double position) {
+            int low = 0;
+            int high = values.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (position(mid) < position) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+        
+        ColumnPyramid rangeIndex() {
+            if (index == null) {
+                index = new ColumnPyramid(values);
+                index.update();
+            }
+            return index;
+        }
+        
+        // Uses an index that is already kept for the same values
+        void setRangeIndex(ColumnPyramid index) {
+            this.index = index;
+        }
+        
+        boolean hasPrefixSums() {
+            return prefixSums != null;
+        }
+        
+        PrefixSums prefixSums() {
+            if (prefixSums == null) {
+                prefixSums = new PrefixSums(values);
+            }
+            return prefixSums;
+        }
+    }
+    
+    // LRU cache of processed series keyed by column and display settings, so
+    // repaints that change nothing skip the processing
+    private static final class SeriesCache {
+        static final String PROPERTY = "csvviewer.seriesCacheMB";
+        static final long DEFAULT_BUDGET_MB = 256;
+        
+        enum Kind { VALUES, DERIVATIVE }
+        
+        static final class Key {
+            private final String column;
+            private final Aggregation aggregation;
+            private final Kind kind;
+            private final Smoothing smoothing;
+            private final int detail; // first row of an out-of-core detail window, or -1
+            
+            Key(String column, Aggregation aggregation, Kind kind, Smoothing smoothing) {
+                this(column, aggregation, kind, smoothing, -1);
+            }
+            
+            Key(String column, Aggregation aggregation, Kind kind, Smoothing smoothing, int detail) {
+                this.column = column;
+                this.aggregation = aggregation;
+                this.kind = kind;
+                this.smoothing = smoothing;
+                this.detail = detail;
+            }
+            
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (!(o instanceof Key)) return false;
+                Key other = (Key) o;
+                return column.equals(other.column) && aggregation.equals(other.aggregation) 
+                    && kind == other.kind && smoothing.equals(other.smoothing) && detail == other.detail;
+            }
+            
+            @Override
+            public int hashCode() {
+                return Objects.hash(column, aggregation, kind, smoothing, detail);
+            }
+        }
+        
+        private static final class Entry {
+            private final Series series;
+            private final long bytes;
+            
+            Entry(Series series, long bytes) {
+                this.series = series;
+                this.bytes = bytes;
+            }
+        }
+        
+        private final long maxBytes;
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+        
+        SeriesCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+        
+        synchronized Series get(Key key) {
+            Entry entry = entries.get(key);
+            return entry != null ? entry.series : null;
+        }
+        
+        // sharesSource: the series wraps the raw column, whose arrays cost
+        // nothing extra. Putting a series again after it has grown an index
+        // updates its size. The newest entry is kept even if it alone is over
+        // the budget, so the series on screen is not recomputed every repaint.
+        synchronized void put(Key key, Series series, boolean sharesSource) {
+            long size = series.estimateBytes(sharesSource);
+            Entry previous = entries.put(key, new Entry(series, size));
+            if (previous != null) bytes -= previous.bytes;
+            bytes += size;
+            
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && entries.size() > 1) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+        
+        synchronized void invalidate(String column) {
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> entry = it.next();
+                if (entry.getKey().column.equals(column)) {
+                    bytes -= entry.getValue().bytes;
+                    it.remove();
+                }
+            }
+        }
+        
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+    
+    // Sums of double ranges on the Vector API when the JVM was started with
+    // --add-modules jdk.incubator.vector, and in a plain loop otherwise. The
+    // module is looked up at run time so the file compiles without it;
+    // -Dcsvviewer.vectorSum=false forces the loop.
+    private static final class VectorSum {
+        static final String PROPERTY = "csvviewer.vectorSum";
+        // Shorter ranges are faster in the plain loop
+        static final int MIN_VECTOR_LENGTH = 32;
+        
+        private static final int LANES;
+        private static final MethodHandle ZERO; // () -> DoubleVector
+        private static final MethodHandle LOAD; // (double[], int) -> DoubleVector
+        private static final MethodHandle ADD; // (DoubleVector, DoubleVector) -> DoubleVector
+        private static final MethodHandle REDUCE; // DoubleVector -> double
+        
+        static {
+            int lanes = 0;
+            MethodHandle zero = null;
+            MethodHandle load = null;
+            MethodHandle add = null;
+            MethodHandle reduce = null;
+            if (!"false".equalsIgnoreCase(System.getProperty(PROPERTY))) {
+                try {
+                    Class<?> vector = Class.forName("jdk.incubator.vector.Vector");
+                    Class<?> doubleVector = Class.forName("jdk.incubator.vector.DoubleVector");
+                    Class<?> species = Class.forName("jdk.incubator.vector.VectorSpecies");
+                    Class<?> associative = Class.forName("jdk.incubator.vector.VectorOperators$Associative");
+                    Object preferred = doubleVector.getField("SPECIES_PREFERRED").get(null);
+                    Object plus = Class.forName("jdk.incubator.vector.VectorOperators").getField("ADD").get(null);
+                    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                    
+                    zero = MethodHandles.insertArguments(lookup.findStatic(doubleVector, "zero", 
+                            MethodType.methodType(doubleVector, species)), 0, preferred)
+                        .asType(MethodType.methodType(Object.class));
+                    load = MethodHandles.insertArguments(lookup.findStatic(doubleVector, "fromArray", 
+                            MethodType.methodType(doubleVector, species, double[].class, int.class)), 0, preferred)
+                        .asType(MethodType.methodType(Object.class, double[].class, int.class));
+                    add = lookup.findVirtual(doubleVector, "add", MethodType.methodType(doubleVector, vector))
+                        .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+                    reduce = MethodHandles.insertArguments(lookup.findVirtual(doubleVector, "reduceLanes", 
+                            MethodType.methodType(double.class, associative)), 1, plus)
+                        .asType(MethodType.methodType(double.class, Object.class));
+                    lanes = (int) species.getMethod("length").invoke(preferred);
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    lanes = 0; // Module not resolved, so sum() keeps to the loop
+                }
+            }
+            LANES = lanes;
+            ZERO = zero;
+            LOAD = load;
+            ADD = add;
+            REDUCE = reduce;
+        }
+        
+        static boolean isVectorized() {
+            return LANES > 0;
+        }
+        
+        // Sum of v[from, to); the vector path adds in a different order, so
+        // results can differ from the loop in the last few bits
+        static double sum(double[] v, int from, int to) {
+            if (LANES == 0 || to - from < MIN_VECTOR_LENGTH) {
+                double sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += v[i];
+                }
+                return sum;
+            }
+            
+            int i = from;
+            double sum;
+            try {
+                Object lanes = (Object) ZERO.invokeExact();
+                for (int bound = to - LANES; i <= bound; i += LANES) {
+                    lanes = (Object) ADD.invokeExact(lanes, (Object) LOAD.invokeExact(v, i));
+                }
+                sum = (double) REDUCE.invokeExact(lanes);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Vector sum failed", e);
+            }
+            for (; i < to; i++) {
+                sum += v[i];
+            }
+            return sum;
+        }
+    }
+    
+    // Mergeable summary statistics of a sequence of values, gathered in one pass
+    private static final class ColumnStats {
+        // Ranges at least this long are summarized in parallel by of(DoubleColumn)
+        private static final int PARALLEL_CHUNK = 1 << 20;
+        // Values per block of the sequential kernel, 8 KB of doubles
+        private static final int BLOCK = 1024;
+        
+        private long count;
+        private double mean;
+        private double m2; // sum of squared deviations from mean
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        
+        // Central differences of positions that have both neighbours in range;
+        // the one-sided differences at the two ends are added by the getters
+        private long derivativeCount;
+        private double derivativeMean;
+        private double derivativeM2;
+        
+        private long peaks;
+        private long valleys;
+        
+        // First two and last two values, needed where two ranges meet
+        private double first;
+        private double second;
+        private double secondLast;
+        private double last;
+        
+        // Quantiles of the values, or null if part of them were summarized
+        // without one (merging then drops it, since it would be biased)
+        private QuantileSketch sketch;
+        
+        // Summarizes v[from, to) one block at a time, without a quantile sketch
+        private static ColumnStats of(double[] v, int from, int to) {
+            ColumnStats stats = new ColumnStats();
+            for (int start = from; start < to; start += BLOCK) {
+                stats.merge(ofBlock(v, start, Math.min(start + BLOCK, to)));
+            }
+            return stats;
+        }
+        
+        // Two-pass summary of one block; blocks combine through merge()
+        private static ColumnStats ofBlock(double[] v, int from, int to) {
+            ColumnStats stats = new ColumnStats();
+            int n = to - from;
+            
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                sum += v[i];
+                min = Math.min(min, v[i]);
+                max = Math.max(max, v[i]);
+            }
+            double mean = sum / n;
+            double m2 = 0;
+            for (int i = from; i < to; i++) {
+                double delta = v[i] - mean;
+                m2 += delta * delta;
+            }
+            
+            // Central differences and local extrema of the interior positions
+            double derivativeSum = 0;
+            int peaks = 0;
+            int valleys = 0;
+            for (int i = from + 1; i < to - 1; i++) {
+                double previous = v[i - 1];
+                double current = v[i];
+                double next = v[i + 1];
+                derivativeSum += (next - previous) / 2.0;
+                int abovePrevious = current > previous ? 1 : 0;
+                int aboveNext = current > next ? 1 : 0;
+                int belowPrevious = current < previous ? 1 : 0;
+                int belowNext = current < next ? 1 : 0;
+                peaks += abovePrevious & aboveNext;
+                valleys += belowPrevious & belowNext;
+            }
+            int derivatives = Math.max(n - 2, 0);
+            double derivativeMean = derivatives > 0 ? derivativeSum / derivatives : 0.0;
+            double derivativeM2 = 0;
+            for (int i = from + 1; i < to - 1; i++) {
+                double delta = (v[i + 1] - v[i - 1]) / 2.0 - derivativeMean;
+                derivativeM2 += delta * delta;
+            }
+            
+            stats.count = n;
+            stats.mean = mean;
+            stats.m2 = m2;
+            stats.min = min;
+            stats.max = max;
+            stats.derivativeCount = derivatives;
+            stats.derivativeMean = derivativeMean;
+            stats.derivativeM2 = derivativeM2;
+            stats.peaks = peaks;
+            stats.valleys = valleys;
+            stats.first = v[from];
+            stats.second = v[Math.min(from + 1, to - 1)];
+            stats.secondLast = v[Math.max(to - 2, from)];
+            stats.last = v[to - 1];
+            return stats;
+        }
+        
+        // Summarizes the present values of a whole column, splitting long ones
+        // across the common pool. Rows without a value are skipped, so the
+        // values on either side of a gap count as neighbours.
+        static ColumnStats of(DoubleColumn column) {
+            int n = column.size();
+            if (n < 2 * PARALLEL_CHUNK) {
+                return of(column, 0, n);
+            }
+            
+            List<ForkJoinTask<ColumnStats>> tasks = new ArrayList<>();
+            for (int from = 0; from < n; from += PARALLEL_CHUNK) {
+                int start = from;
+                int end = Math.min(from + PARALLEL_CHUNK, n);
+                tasks.add(ForkJoinPool.commonPool().submit(() -> of(column, start, end)));
+            }
+            ColumnStats stats = new ColumnStats();
+            for (ForkJoinTask<ColumnStats> task : tasks) {
+                stats.merge(task.join());
+            }
+            return stats;
+        }
+        
+        // Summarizes the present values of column[from, to), one run between
+        // gaps at a time, all of them feeding one quantile sketch
+        private static ColumnStats of(DoubleColumn column, int from, int to) {
+            QuantileSketch sketch = new QuantileSketch();
+            ColumnStats stats;
+            if (!column.hasMissing()) {
+                stats = of(column.array(), from, to);
+                sketch.addAll(column.array(), from, to);
+            } else {
+                stats = new ColumnStats();
+                for (int start = column.nextPresent(from); start < to; start = column.nextPresent(start)) {
+                    int end = Math.min(column.nextMissing(start), to);
+                    stats.merge(of(column.array(), start, end));
+                    sketch.addAll(column.array(), start, end);
+                    start = end;
+                }
+            }
+            sketch.compress();
+            stats.sketch = stats.count > 0 ? sketch : null;
+            return stats;
+        }
+        
+        // Adds the summary of the values that directly follow this range
+        void merge(ColumnStats next) {
+            if (next.count == 0) return;
+            if (count == 0) {
+                copyFrom(next);
+                return;
+            }
+            
+            if (sketch != null && next.sketch != null) {
+                sketch.merge(next.sketch);
+            } else {
+                sketch = null;
+            }
+            
+            // The two positions at the seam now have both neighbours
+            if (count >= 2) {
+                addNeighbourhood(secondLast, last, next.first);
+            }
+            if (next.count >= 2) {
+                addNeighbourhood(last, next.first, next.second);
+            }
+            
+            long total = count + next.count;
+            double delta = next.mean - mean;
+            m2 += next.m2 + delta * delta * count * next.count / total;
+            mean += delta * next.count / total;
+            min = Math.min(min, next.min);
+            max = Math.max(max, next.max);
+            
+            if (next.derivativeCount > 0) {
+                long derivativeTotal = derivativeCount + next.derivativeCount;
+                double derivativeDelta = next.derivativeMean - derivativeMean;
+                derivativeM2 += next.derivativeM2 
+                    + derivativeDelta * derivativeDelta * derivativeCount * next.derivativeCount / derivativeTotal;
+                derivativeMean += derivativeDelta * next.derivativeCount / derivativeTotal;
+                derivativeCount = derivativeTotal;
+            }
+            
+            peaks += next.peaks;
+            valleys += next.valleys;
+            
+            if (count == 1) {
+                second = next.first;
+            }
+            secondLast = next.count >= 2 ? next.secondLast : last;
+            last = next.last;
+            count = total;
+        }
+        
+        long count() {
+            return count;
+        }
+        
+        double min() {
+            return min;
+        }
+        
+        double max() {
+            return max;
+        }
+        
+        double mean() {
+            return mean;
+        }
+        
+        // Population variance
+        double variance() {
+            return count > 0 ? m2 / count : 0.0;
+        }
+        
+        // Estimated value at quantile q, e.g. 0.99 for p99; NaN without a sketch
+        double quantile(double q) {
+            return sketch != null ? sketch.quantile(q) : Double.NaN;
+        }
+        
+        QuantileSketch sketch() {
+            return sketch;
+        }
+        
+        // Attaches the sketch of the same values, read back from a ColumnCache
+        void setSketch(QuantileSketch sketch) {
+            this.sketch = sketch;
+        }
+        
+        long peaks() {
+            return peaks;
+        }
+        
+        long valleys() {
+            return valleys;
+        }
+        
+        // Mean of calculateDerivative() of the values, 0 with fewer than two
+        double derivativeMean() {
+            if (count < 2) return 0.0;
+            return (derivativeMean * derivativeCount + (second - first) + (last - secondLast)) 
+                / (derivativeCount + 2);
+        }
+        
+        // Population variance of calculateDerivative() of the values
+        double derivativeVariance() {
+            if (count < 2) return 0.0;
+            double mean = derivativeMean();
+            double head = (second - first) - mean;
+            double tail = (last - secondLast) - mean;
+            double shift = derivativeMean - mean;
+            return (derivativeM2 + derivativeCount * shift * shift + head * head + tail * tail) 
+                / (derivativeCount + 2);
+        }
+        
+        // Position with value current between previous and next
+        private void addNeighbourhood(double previous, double current, double next) {
+            double derivative = (next - previous) / 2.0;
+            derivativeCount++;
+            double delta = derivative - derivativeMean;
+            derivativeMean += delta / derivativeCount;
+            derivativeM2 += delta * (derivative - derivativeMean);
+            
+            if (current > previous && current > next) {
+                peaks++;
+            } else if (current < previous && current < next) {
+                valleys++;
+            }
+        }
+        
+        private void copyFrom(ColumnStats other) {
+            count = other.count;
+            mean = other.mean;
+            m2 = other.m2;
+            min = other.min;
+            max = other.max;
+            derivativeCount = other.derivativeCount;
+            derivativeMean = other.derivativeMean;
+            derivativeM2 = other.derivativeM2;
+            peaks = other.peaks;
+            valleys = other.valleys;
+            first = other.first;
+            second = other.second;
+            secondLast = other.secondLast;
+            last = other.last;
+            sketch = other.sketch != null ? other.sketch.copy() : null;
+        }
+        
+        // Size of the binary form written by writeTo; the quantile sketch is
+        // written separately since its size varies
+        static final int BYTES = 14 * Long.BYTES;
+        
+        void writeTo(ByteBuffer out) {
+            out.putLong(count).putDouble(mean).putDouble(m2).putDouble(min).putDouble(max);
+            out.putLong(derivativeCount).putDouble(derivativeMean).putDouble(derivativeM2);
+            out.putLong(peaks).putLong(valleys);
+            out.putDouble(first).putDouble(second).putDouble(secondLast).putDouble(last);
+        }
+        
+        static ColumnStats readFrom(ByteBuffer in) {
+            ColumnStats stats = new ColumnStats();
+            stats.count = in.getLong();
+            stats.mean = in.getDouble();
+            stats.m2 = in.getDouble();
+            stats.min = in.getDouble();
+            stats.max = in.getDouble();
+            stats.derivativeCount = in.getLong();
+            stats.derivativeMean = in.getDouble();
+            stats.derivativeM2 = in.getDouble();
+            stats.peaks = in.getLong();
+            stats.valleys = in.getLong();
+            stats.first = in.getDouble();
+            stats.second = in.getDouble();
+            stats.secondLast = in.getDouble();
+            stats.last = in.getDouble();
+            return stats;
+        }
+    }
+    
+    // Mergeable quantile estimates in fixed memory (a merging t-digest)
+    private static final class QuantileSketch {
+        private static final double COMPRESSION = 200;
+        private static final int BUFFER_SIZE = 2048;
+        // Written in place of a sketch's centroid count where there is none
+        static final long NONE = -1;
+        
+        private double[] means = new double[0];
+        private double[] weights = new double[0];
+        private int centroids;
+        private double[] buffer; // unit-weight values not merged yet, allocated on first use
+        private int buffered;
+        private double[] scratchMeans = new double[0]; // reused while values are added
+        private double[] scratchWeights = new double[0];
+        private long[] keys; // radix sort arrays, allocated with the buffer
+        private long[] sortedKeys;
+        private int[] digitCounts;
+        private double totalWeight; // of the centroids only
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        
+        void add(double value) {
+            if (buffer == null) {
+                buffer = new double[BUFFER_SIZE];
+            }
+            if (buffered == buffer.length) {
+                flush();
+            }
+            buffer[buffered++] = value;
+        }
+        
+        // Adds v[from, to)
+        void addAll(double[] v, int from, int to) {
+            while (from < to) {
+                if (buffer == null) {
+                    buffer = new double[BUFFER_SIZE];
+                }
+                if (buffered == buffer.length) {
+                    flush();
+                }
+                int count = Math.min(to - from, buffer.length - buffered);
+                System.arraycopy(v, from, buffer, buffered, count);
+                buffered += count;
+                from += count;
+            }
+        }
+        
+        void merge(QuantileSketch other) {
+            other.flush();
+            flush();
+            if (other.centroids == 0) return;
+            
+            // Merge the two sorted centroid lists, then recombine them
+            int n = centroids + other.centroids;
+            double[] mergedMeans = new double[n];
+            double[] mergedWeights = new double[n];
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < n; k++) {
+                if (j == other.centroids || i < centroids && means[i] <= other.means[j]) {
+                    mergedMeans[k] = means[i];
+                    mergedWeights[k] = weights[i++];
+                } else {
+                    mergedMeans[k] = other.means[j];
+                    mergedWeights[k] = other.weights[j++];
+                }
+            }
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            combine(mergedMeans, mergedWeights, n, totalWeight + other.totalWeight);
+        }
+        
+        QuantileSketch copy() {
+            flush();
+            QuantileSketch copy = new QuantileSketch();
+            copy.means = Arrays.copyOf(means, centroids);
+            copy.weights = Arrays.copyOf(weights, centroids);
+            copy.centroids = centroids;
+            copy.totalWeight = totalWeight;
+            copy.min = min;
+            copy.max = max;
+            return copy;
+        }
+        
+        // Number of values added
+        long count() {
+            return (long) totalWeight + buffered;
+        }
+        
+        // Estimated value at quantile q in [0, 1]; NaN without any values
+        double quantile(double q) {
+            flush();
+            if (centroids == 0) return Double.NaN;
+            if (centroids == 1) return means[0];
+            
+            double target = Math.max(0, Math.min(1, q)) * totalWeight;
+            if (target < weights[0] / 2) {
+                return min + (means[0] - min) * target / (weights[0] / 2);
+            }
+            double center = weights[0] / 2; // cumulative weight at the mean of centroid i
+            for (int i = 0; i < centroids - 1; i++) {
+                double nextCenter = center + (weights[i] + weights[i + 1]) / 2;
+                if (target < nextCenter) {
+                    return means[i] + (means[i + 1] - means[i]) * (target - center) / (nextCenter - center);
+                }
+                center = nextCenter;
+            }
+            double lastHalf = weights[centroids - 1] / 2;
+            return means[centroids - 1] + (max - means[centroids - 1]) 
+                * Math.min(1, (target - center) / lastHalf);
+        }
+        
+        // Merges the buffer and releases the working arrays
+        void compress() {
+            flush();
+            buffer = null;
+            keys = null;
+            sortedKeys = null;
+            digitCounts = null;
+            scratchMeans = new double[0];
+            scratchWeights = new double[0];
+            if (means.length > centroids) {
+                means = Arrays.copyOf(means, centroids);
+                weights = Arrays.copyOf(weights, centroids);
+            }
+        }
+        
+        // Merges the buffer into the centroids through the scratch arrays
+        private void flush() {
+            if (buffered == 0) return;
+            sortBuffer();
+            
+            int n = centroids + buffered;
+            if (scratchMeans.length < n) {
+                scratchMeans = new double[n];
+                scratchWeights = new double[n];
+            }
+            double[] mergedMeans = scratchMeans;
+            double[] mergedWeights = scratchWeights;
+            scratchMeans = means;
+            scratchWeights = weights;
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < n; k++) {
+                if (j == buffered || i < centroids && means[i] <= buffer[j]) {
+                    mergedMeans[k] = means[i];
+                    mergedWeights[k] = weights[i++];
+                } else {
+                    mergedMeans[k] = buffer[j++];
+                    mergedWeights[k] = 1;
+                }
+            }
+            double total = totalWeight + buffered;
+            buffered = 0;
+            combine(mergedMeans, mergedWeights, n, total);
+        }
+        
+        // LSD radix sort on the full order-preserving key, skipping bytes every key shares
+        private void sortBuffer() {
+            if (keys == null) {
+                keys = new long[BUFFER_SIZE];
+                sortedKeys = new long[BUFFER_SIZE];
+                digitCounts = new int[256];
+            }
+            long[] from = keys;
+            long[] to = sortedKeys;
+            long allOnes = -1;
+            long anyOnes = 0;
+            for (int i = 0; i < buffered; i++) {
+                double value = buffer[i];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                long bits = Double.doubleToRawLongBits(value);
+                long key = bits ^ (bits >> 63 | Long.MIN_VALUE); // unsigned order of the values
+                from[i] = key;
+                allOnes &= key;
+                anyOnes |= key;
+            }
+            long varying = allOnes ^ anyOnes;
+            for (int shift = 0; shift < 64; shift += 8) {
+                if ((varying >>> shift & 0xff) == 0) continue;
+                Arrays.fill(digitCounts, 0);
+                for (int i = 0; i < buffered; i++) {
+                    digitCounts[(int) (from[i] >>> shift) & 0xff]++;
+                }
+                for (int digit = 0, start = 0; digit < 256; digit++) {
+                    int count = digitCounts[digit];
+                    digitCounts[digit] = start;
+                    start += count;
+                }
+                for (int i = 0; i < buffered; i++) {
+                    long key = from[i];
+                    to[digitCounts[(int) (key >>> shift) & 0xff]++] = key;
+                }
+                long[] swap = from;
+                from = to;
+                to = swap;
+            }
+            for (int i = 0; i < buffered; i++) {
+                long key = from[i];
+                buffer[i] = Double.longBitsToDouble(key ^ (~key >> 63 | Long.MIN_VALUE));
+            }
+        }
+        
+        // Rebuilds the centroids from n sorted ones, folding neighbours
+        // together while the k1 scale grows by at most one
+        private void combine(double[] sortedMeans, double[] sortedWeights, int n, double total) {
+            int out = 0;
+            double before = 0; // weight of the centroids already emitted
+            double limit = weightLimit(0, total);
+            double mean = sortedMeans[0];
+            double weight = sortedWeights[0];
+            for (int k = 1; k < n; k++) {
+                if (before + weight + sortedWeights[k] <= limit) {
+                    weight += sortedWeights[k];
+                    mean += (sortedMeans[k] - mean) * sortedWeights[k] / weight;
+                } else {
+                    sortedMeans[out] = mean;
+                    sortedWeights[out++] = weight;
+                    before += weight;
+                    limit = weightLimit(before / total, total);
+                    mean = sortedMeans[k];
+                    weight = sortedWeights[k];
+                }
+            }
+            sortedMeans[out] = mean;
+            sortedWeights[out++] = weight;
+            
+            means = sortedMeans;
+            weights = sortedWeights;
+            centroids = out;
+            totalWeight = total;
+        }
+        
+        // Cumulative weight up to which a centroid starting at quantile q may grow
+        private static double weightLimit(double q, double total) {
+            double k = COMPRESSION / (2 * Math.PI) * Math.asin(2 * q - 1) + 1;
+            if (k >= COMPRESSION / 4) return total;
+            return (Math.sin(k * 2 * Math.PI / COMPRESSION) + 1) / 2 * total;
+        }
+        
+        // Bytes writeTo needs
+        int bytes() {
+            flush();
+            return 3 * Long.BYTES + 2 * centroids * Double.BYTES;
+        }
+        
+        void writeTo(ByteBuffer out) {
+            flush();
+            out.putLong(centroids).putDouble(min).putDouble(max);
+            for (int i = 0; i < centroids; i++) {
+                out.putDouble(means[i]).putDouble(weights[i]);
+            }
+        }
+        
+        // Reads what writeTo wrote, or null where NONE was written instead
+        static QuantileSketch readFrom(ByteBuffer in) {
+            long centroids = in.getLong();
+            if (centroids == NONE) return null;
+            QuantileSketch sketch = new QuantileSketch();
+            sketch.centroids = (int) centroids;
+            sketch.min = in.getDouble();
+            sketch.max = in.getDouble();
+            sketch.means = new double[sketch.centroids];
+            sketch.weights = new double[sketch.centroids];
+            for (int i = 0; i < sketch.centroids; i++) {
+                sketch.means[i] = in.getDouble();
+                sketch.weights[i] = in.getDouble();
+                sketch.totalWeight += sketch.weights[i];
+            }
+            return sketch;
+        }
+    }
+    
+    // Multi-resolution summary of a raw column: level k holds the sum, min, max
+    // and present count of blocks of BASE_BLOCK << k samples
+    private static final class ColumnPyramid {
+        static final int BASE_BLOCK = 16;
+        // Below this window a plain scan of the raw data is cheaper
+        static final int MIN_WINDOW = 32 * BASE_BLOCK;
+        
+        private static final class Level {
+            double[] sums = new double[0];
+            double[] mins = new double[0];
+            double[] maxs = new double[0];
+            int[] counts = new int[0];
+            int size;
+            
+            void ensureCapacity(int capacity) {
+                if (capacity > sums.length) {
+                    int newCapacity = Math.max(capacity, sums.length + (sums.length >> 1));
+                    sums = Arrays.copyOf(sums, newCapacity);
+                    mins = Arrays.copyOf(mins, newCapacity);
+                    maxs = Arrays.copyOf(maxs, newCapacity);
+                    counts = Arrays.copyOf(counts, newCapacity);
+                }
+            }
+        }
+        
+        // Running result of a range query
+        static final class Summary {
+            double sum;
+            double min;
+            double max;
+            long count;
+            
+            void reset() {
+                sum = 0;
+                min = Double.POSITIVE_INFINITY;
+                max = Double.NEGATIVE_INFINITY;
+                count = 0;
+            }
+        }
+        
+        private final DoubleColumn column;
+        private final List<Level> levels = new ArrayList<>();
+        private int builtSize;
+        
+        ColumnPyramid(DoubleColumn column) {
+            this.column = column;
+        }
+        
+        // Brings the pyramid up to date with the column's current size
+        void update() {
+            int n = column.size();
+            if (n == builtSize) return;
+            double[] v = column.array();
+            
+            // Base level straight from the raw data, starting at the block
+            // that held the previous last sample
+            Level base = level(0);
+            int nodes = (n + BASE_BLOCK - 1) / BASE_BLOCK;
+            base.ensureCapacity(nodes);
+            for (int node = builtSize / BASE_BLOCK; node < nodes; node++) {
+                int start = node * BASE_BLOCK;
+                int end = Math.min(start + BASE_BLOCK, n);
+                double sum = 0;
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                int count = 0;
+                for (int runStart = column.nextPresent(start); runStart < end; runStart = column.nextPresent(runStart)) {
+                    int runEnd = Math.min(column.nextMissing(runStart), end);
+                    for (int i = runStart; i < runEnd; i++) {
+                        sum += v[i];
+                        min = Math.min(min, v[i]);
+                        max = Math.max(max, v[i]);
+                    }
+                    count += runEnd - runStart;
+                    runStart = runEnd;
+                }
+                base.sums[node] = sum;
+                base.mins[node] = min;
+                base.maxs[node] = max;
+                base.counts[node] = count;
+            }
+            base.size = nodes;
+            
+            // Each higher node combines two children of the level below
+            int firstChanged = builtSize / BASE_BLOCK;
+            for (int k = 1; levels.get(k - 1).size > 1; k++) {
+                Level below = levels.get(k - 1);
+                Level level = level(k);
+                nodes = (below.size + 1) / 2;
+                level.ensureCapacity(nodes);
+                firstChanged /= 2;
+                for (int node = firstChanged; node < nodes; node++) {
+                    int left = 2 * node;
+                    int right = left + 1;
+                    if (right < below.size) {
+                        level.sums[node] = below.sums[left] + below.sums[right];
+                        level.mins[node] = Math.min(below.mins[left], below.mins[right]);
+                        level.maxs[node] = Math.max(below.maxs[left], below.maxs[right]);
+                        level.counts[node] = below.counts[left] + below.counts[right];
+                    } else {
+                        level.sums[node] = below.sums[left];
+                        level.mins[node] = below.mins[left];
+                        level.maxs[node] = below.maxs[left];
+                        level.counts[node] = below.counts[left];
+                    }
+                }
+                level.size = nodes;
+            }
+            builtSize = n;
+        }
+        
+        // Read-only copy for a fixed-size view of the column, sharing the level
+        // arrays; queries below its size only read whole blocks, which later
+        // updates never rewrite
+        ColumnPyramid snapshot(DoubleColumn view) {
+            update();
+            ColumnPyramid snapshot = new ColumnPyramid(view);
+            for (Level level : levels) {
+                Level frozen = snapshot.level(snapshot.levels.size());
+                frozen.sums = level.sums;
+                frozen.mins = level.mins;
+                frozen.maxs = level.maxs;
+                frozen.counts = level.counts;
+                frozen.size = level.size;
+            }
+            snapshot.builtSize = builtSize;
+            return snapshot;
+        }
+        
+        // Summarizes rows [from, to) into result
+        void query(int from, int to, Summary result) {
+            result.reset();
+            double[] v = column.array();
+            to = Math.min(to, builtSize);
+            int i = from;
+            while (i < to) {
+                if (i % BASE_BLOCK != 0 || i + BASE_BLOCK > to) {
+                    // Partial base block: read the raw value
+                    if (!column.isPresent(i)) {
+                        i++;
+                        continue;
+                    }
+                    result.sum += v[i];
+                    result.min = Math.min(result.min, v[i]);
+                    result.max = Math.max(result.max, v[i]);
+                    result.count++;
+                    i++;
+                    continue;
+                }
+                
+                // Largest aligned block that starts at i and ends by to
+                int k = 0;
+                while (k + 1 < levels.size() && i % ((long) BASE_BLOCK << (k + 1)) == 0 
+                        && i + ((long) BASE_BLOCK << (k + 1)) <= to) {
+                    k++;
+                }
+                Level level = levels.get(k);
+                int node = (int) (i / ((long) BASE_BLOCK << k));
+                result.sum += level.sums[node];
+                result.min = Math.min(result.min, level.mins[node]);
+                result.max = Math.max(result.max, level.maxs[node]);
+                result.count += level.counts[node];
+                i += (int) ((long) BASE_BLOCK << k);
+            }
+        }
+        
+        // Heap used by the levels
+        long estimateBytes() {
+            long bytes = 0;
+            for (Level level : levels) {
+                bytes += 28L * level.sums.length;
+            }
+            return bytes;
+        }
+        
+        // Block averages over consecutive windows, matching aggregateData; a
+        // window without present values is missing
+        DoubleColumn averages(int window) {
+            int n = builtSize;
+            DoubleColumn averages = new DoubleColumn((n + window - 1) / window);
+            Summary summary = new Summary();
+            for (int start = 0; start < n; start += window) {
+                query(start, (int) Math.min((long) start + window, n), summary);
+                if (summary.count > 0) {
+                    averages.add(summary.sum / summary.count);
+                } else {
+                    averages.addMissing();
+                }
+            }
+            return averages;
+        }
+        
+        private Level level(int k) {
+            while (levels.size() <= k) {
+                levels.add(new Level());
+            }
+            return levels.get(k);
+        }
+    }
+    
+    // Growable column of primitive doubles, aligned with the rows of the file;
+    // cells without a value are marked in a validity bitmap allocated on demand
+    private static final class DoubleColumn {
+        private double[] values;
+        private int size;
+        private long[] validity; // bit i set if row i has a value; null while all have
+        private int missing;
+        
+        private boolean summarized;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+        
+        DoubleColumn() {
+            this(16);
+        }
+        
+        DoubleColumn(int initialCapacity) {
+            values = new double[Math.max(initialCapacity, 1)];
+            summarized = true;
+        }
+        
+        // Wraps an already filled array without copying it; the summary is
+        // computed on first use
+        DoubleColumn(double[] values, int size) {
+            this(values, null, size);
+        }
+        
+        // Same with a validity bitmap as kept by another column, or null if
+        // every value is present
+        DoubleColumn(double[] values, long[] validity, int size) {
+            this.values = values;
+            this.size = size;
+            if (validity != null) {
+                // Rows the other column gained after size are not part of this one
+                this.validity = Arrays.copyOf(validity, words(values.length));
+                Arrays.fill(this.validity, Math.min(words(size), this.validity.length), this.validity.length, 0);
+                if ((size & 63) != 0) {
+                    this.validity[size >>> 6] &= (1L << size) - 1;
+                }
+                missing = size - countPresent(this.validity, size);
+            }
+        }
+        
+        void add(double value) {
+            if (size == values.length) {
+                grow(size + 1);
+            }
+            if (validity != null) {
+                validity[size >>> 6] |= 1L << size;
+            }
+            values[size++] = value;
+            if (summarized) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+        }
+        
+        // Appends a row without a value
+        void addMissing() {
+            if (size == values.length) {
+                grow(size + 1);
+            }
+            if (validity == null) {
+                validity = new long[words(values.length)];
+                setPresent(validity, 0, size);
+            }
+            values[size++] = 0;
+            missing++;
+        }
+        
+        void addAll(DoubleColumn other) {
+            if (size + other.size > values.length) {
+                grow(size + other.size);
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            if (other.validity != null && validity == null) {
+                validity = new long[words(values.length)];
+                setPresent(validity, 0, size);
+            }
+            if (validity != null) {
+                if (other.validity != null) {
+                    copyBits(other.validity, other.size, validity, size);
+                } else {
+                    setPresent(validity, size, size + other.size);
+                }
+            }
+            size += other.size;
+            missing += other.missing;
+            if (summarized) {
+                other.summarize();
+                min = Math.min(min, other.min);
+                max = Math.max(max, other.max);
+                sum += other.sum;
+            }
+        }
+        
+        // Appends rows [from, to) of other, gaps included; the summary is
+        // computed again on next use
+        void addRange(DoubleColumn other, int from, int to) {
+            int count = to - from;
+            if (size + count > values.length) {
+                grow(size + count);
+            }
+            System.arraycopy(other.values, from, values, size, count);
+            if (other.missing > 0 && validity == null) {
+                validity = new long[words(values.length)];
+                setPresent(validity, 0, size);
+            }
+            int present = count;
+            if (validity != null) {
+                present = 0;
+                for (int start = other.nextPresent(from); start < to; start = other.nextPresent(start)) {
+                    int end = Math.min(other.nextMissing(start), to);
+                    setPresent(validity, size + start - from, size + end - from);
+                    present += end - start;
+                    start = end;
+                }
+            }
+            size += count;
+            missing += count - present;
+            summarized = false;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            sum = 0;
+        }
+        
+        double get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+            }
+            return values[index];
+        }
+        
+        int size() {
+            return size;
+        }
+        
+        boolean isEmpty() {
+            return size == 0;
+        }
+        
+        // Rows that have a value
+        int presentCount() {
+            return size - missing;
+        }
+        
+        boolean hasMissing() {
+            return missing > 0;
+        }
+        
+        boolean isPresent(int index) {
+            return validity == null || (validity[index >>> 6] & 1L << index) != 0;
+        }
+        
+        // First row at or after from that has a value, or size() if none does
+        int nextPresent(int from) {
+            if (validity == null || from >= size) return Math.min(from, size);
+            int word = from >>> 6;
+            long bits = validity[word] & -1L << from;
+            while (bits == 0) {
+                if (++word >= words(size)) return size;
+                bits = validity[word];
+            }
+            return Math.min(size, (word << 6) + Long.numberOfTrailingZeros(bits));
+        }
+        
+        // First row at or after from without a value, or size() if there is none
+        int nextMissing(int from) {
+            if (missing == 0 || from >= size) return size;
+            int word = from >>> 6;
+            long bits = ~validity[word] & -1L << from;
+            while (bits == 0) {
+                if (++word >= words(size)) return size;
+                bits = ~validity[word];
+            }
+            return Math.min(size, (word << 6) + Long.numberOfTrailingZeros(bits));
+        }
+        
+        // Last row at or before from that has a value, or -1 if none does
+        int previousPresent(int from) {
+            if (from < 0) return -1;
+            if (validity == null) return Math.min(from, size - 1);
+            from = Math.min(from, size - 1);
+            int word = from >>> 6;
+            long bits = validity[word] & -1L >>> (63 - (from & 63));
+            while (bits == 0) {
+                if (--word < 0) return -1;
+                bits = validity[word];
+            }
+            return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+        }
+        
+        double[] array() {
+            return values;
+        }
+        
+        // Copy of rows [from, to), gaps included
+        DoubleColumn copyOfRange(int from, int to) {
+            DoubleColumn copy = new DoubleColumn(to - from);
+            copy.addRange(this, from, to);
+            return copy;
+        }
+        
+        // The validity bitmap, or null while every value is present
+        long[] validity() {
+            return validity;
+        }
+        
+        void trimToSize() {
+            if (values.length > size) {
+                values = Arrays.copyOf(values, Math.max(size, 1));
+                if (validity != null) {
+                    validity = Arrays.copyOf(validity, words(values.length));
+                }
+            }
+        }
+        
+        double min() {
+            summarize();
+            return min;
+        }
+        
+        double max() {
+            summarize();
+            return max;
+        }
+        
+        double mean() {
+            if (size == missing) return 0.0;
+            summarize();
+            return sum / (size - missing);
+        }
+        
+        private void summarize() {
+            if (summarized) return;
+            // Accumulate in locals and store the fields once
+            double[] v = values;
+            double min = this.min;
+            double max = this.max;
+            double sum = this.sum;
+            for (int start = nextPresent(0); start < size; start = nextPresent(start)) {
+                int end = nextMissing(start);
+                for (int i = start; i < end; i++) {
+                    min = Math.min(min, v[i]);
+                    max = Math.max(max, v[i]);
+                    sum += v[i];
+                }
+                start = end;
+            }
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+            summarized = true;
+        }
+        
+        private void grow(int minCapacity) {
+            int newCapacity = values.length + (values.length >> 1);
+            if (newCapacity < minCapacity) {
+                newCapacity = minCapacity;
+            }
+            values = Arrays.copyOf(values, newCapacity);
+            if (validity != null) {
+                validity = Arrays.copyOf(validity, words(newCapacity));
+            }
+        }
+        
+        static int words(int bits) {
+            return (bits + 63) >>> 6;
+        }
+        
+        // Sets bits [from, to), a word at a time
+        private static void setPresent(long[] bits, int from, int to) {
+            for (int i = from; i < to; ) {
+                int word = i >>> 6;
+                int end = Math.min(to, (word + 1) << 6);
+                long mask = end - i == 64 ? -1L : ((1L << (end - i)) - 1) << i;
+                bits[word] |= mask;
+                i = end;
+            }
+        }
+        
+        // ORs the first count bits of source into target starting at bit
+        // position; bits of target from position on must still be clear
+        private static void copyBits(long[] source, int count, long[] target, int position) {
+            int shift = position & 63;
+            int base = position >>> 6;
+            for (int k = 0; k < words(count); k++) {
+                long word = source[k];
+                if (k == words(count) - 1 && (count & 63) != 0) {
+                    word &= (1L << count) - 1;
+                }
+                target[base + k] |= word << shift;
+                if (shift != 0 && base + k + 1 < target.length) {
+                    target[base + k + 1] |= word >>> (64 - shift);
+                }
+            }
+        }
+        
+        private static int countPresent(long[] bits, int size) {
+            int count = 0;
+            for (int k = 0; k < words(size); k++) {
+                long word = bits[k];
+                if (k == words(size) - 1 && (size & 63) != 0) {
+                    word &= (1L << size) - 1;
+                }
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+    }
+    
+    // Growable column of epoch-nanosecond timestamps, aligned with the rows of the
+    // value columns; rows without one are listed in missingRows
+    private static final class TimeIndex {
+        private long[] times;
+        private int size;
+        private int[] missingRows = new int[0];
+        private int missing;
+        private boolean ordered = true; // present timestamps never decrease
+        private boolean anyPresent;
+        private long first; // first and last present timestamp, once there is one
+        private long last;
+        private Axis axis; // for the current size, made on first use
+        
+        TimeIndex() {
+            this(16);
+        }
+        
+        TimeIndex(int initialCapacity) {
+            times = new long[Math.max(initialCapacity, 1)];
+        }
+        
+        // Wraps timestamps read back from a ColumnCache
+        TimeIndex(long[] times, int size, int[] missingRows) {
+            this.times = times;
+            this.size = size;
+            this.missingRows = missingRows;
+            this.missing = missingRows.length;
+            for (int i = 0, m = 0; i < size; i++) {
+                if (m < missing && missingRows[m] == i) {
+                    m++;
+                } else {
+                    append(times[i]);
+                }
+            }
+        }
+        
+        void add(long time) {
+            if (size == times.length) {
+                grow(size + 1);
+            }
+            times[size++] = time;
+            append(time);
+        }
+        
+        // Appends a row without a timestamp
+        void addMissing() {
+            if (size == times.length) {
+                grow(size + 1);
+            }
+            if (missing == missingRows.length) {
+                missingRows = Arrays.copyOf(missingRows, Math.max(4, missing * 2));
+            }
+            missingRows[missing++] = size;
+            times[size++] = 0;
+            axis = null;
+        }
+        
+        void addAll(TimeIndex other) {
+            if (size + other.size > times.length) {
+                grow(size + other.size);
+            }
+            System.arraycopy(other.times, 0, times, size, other.size);
+            if (other.missing > 0) {
+                if (missing + other.missing > missingRows.length) {
+                    missingRows = Arrays.copyOf(missingRows, Math.max(missing + other.missing, missing * 2));
+                }
+                for (int m = 0; m < other.missing; m++) {
+                    missingRows[missing++] = size + other.missingRows[m];
+                }
+            }
+            if (other.anyPresent) {
+                ordered &= other.ordered && (!anyPresent || last <= other.first);
+                if (!anyPresent) first = other.first;
+                last = other.last;
+                anyPresent = true;
+            }
+            size += other.size;
+            axis = null;
+        }
+        
+        long get(int row) {
+            return times[row];
+        }
+        
+        int size() {
+            return size;
+        }
+        
+        int presentCount() {
+            return size - missing;
+        }
+        
+        boolean isPresent(int row) {
+            return missing == 0 || Arrays.binarySearch(missingRows, 0, missing, row) < 0;
+        }
+        
+        // Index into the missing rows of the first one at or after row
+        int firstMissingAtOrAfter(int row) {
+            int index = Arrays.binarySearch(missingRows, 0, missing, row);
+            return index >= 0 ? index : -index - 1;
+        }
+        
+        // Row of the index-th missing timestamp, or Integer.MAX_VALUE past the last
+        int missingRow(int index) {
+            return index < missing ? missingRows[index] : Integer.MAX_VALUE;
+        }
+        
+        int missingCount() {
+            return missing;
+        }
+        
+        // Backing array; only the first size() timestamps are meaningful
+        long[] array() {
+            return times;
+        }
+        
+        // Rows without a timestamp, ascending; only the first missingCount() are meaningful
+        int[] missingRows() {
+            return missingRows;
+        }
+        
+        // Upper bound on the number of buckets of the given width the rows
+        // fall into, which is exact for time-ordered rows
+        int bucketCount(long bucketNanos) {
+            if (!anyPresent) return 0;
+            if (!ordered) return presentCount();
+            long buckets = Math.floorDiv(last, bucketNanos) - Math.floorDiv(first, bucketNanos) + 1;
+            return (int) Math.min(buckets, presentCount());
+        }
+        
+        // Whether every row has a timestamp and none is earlier than the one before
+        boolean isMonotonic() {
+            return missing == 0 && ordered;
+        }
+        
+        // The x-axis for the rows so far, or null if the rows cannot be
+        // placed by time or all fall on one instant
+        Axis axis() {
+            if (axis == null && isMonotonic() && size > 1 && last > first) {
+                axis = new Axis(times, size);
+            }
+            return axis;
+        }
+        
+        // Fixed view of the first size timestamps, copied when the column grows
+        TimeIndex view() {
+            TimeIndex view = new TimeIndex(0);
+            view.times = times;
+            view.size = size;
+            view.missingRows = missingRows;
+            view.missing = missing;
+            view.ordered = ordered;
+            view.anyPresent = anyPresent;
+            view.first = first;
+            view.last = last;
+            return view;
+        }
+        
+        void trimToSize() {
+            if (times.length > size) {
+                times = Arrays.copyOf(times, Math.max(size, 1));
+                axis = null;
+            }
+            if (missingRows.length > missing) {
+                missingRows = Arrays.copyOf(missingRows, missing);
+            }
+        }
+        
+        private void append(long time) {
+            if (!anyPresent) {
+                first = time;
+                anyPresent = true;
+            } else {
+                ordered &= last <= time;
+            }
+            last = time;
+            axis = null;
+        }
+        
+        private void grow(int minCapacity) {
+            times = Arrays.copyOf(times, Math.max(minCapacity, times.length + (times.length >> 1)));
+        }
+        
+        // Maps between x-axis positions, as fractions of the time range, and rows of
+        // a time-ordered index by binary search
+        static final class Axis {
+            private final long[] times;
+            private final int size;
+            
+            private Axis(long[] times, int size) {
+                this.times = times;
+                this.size = size;
+            }
+            
+            long start() {
+                return times[0];
+            }
+            
+            long end() {
+                return times[size - 1];
+            }
+            
+            // Timestamp at a position, from start() at 0 to end() at 1
+            long timeAt(double position) {
+                return start() + (long) (Math.max(0, Math.min(1, position)) * (end() - start()));
+            }
+            
+            // Position of a row position, interpolating between the two
+            // rows a fractional one lies between
+            double positionOfRow(double rowPosition) {
+                double row = Math.max(0, Math.min(1, rowPosition)) * (size - 1);
+                int below = (int) row;
+                double time = times[below] - start();
+                if (below + 1 < size) {
+                    time += (row - below) * (times[below + 1] - times[below]);
+                }
+                return time / (end() - start());
+            }
+            
+            // Row position at a position; the inverse of positionOfRow
+            double rowPositionAt(double position) {
+                long time = timeAt(position);
+                int row = rowAtOrAfter(time);
+                if (row == 0) return 0;
+                if (row >= size) return 1;
+                double fraction = (double) (time - times[row - 1]) / (times[row] - times[row - 1]);
+                return (row - 1 + fraction) / (size - 1);
+            }
+            
+            // First row whose timestamp is at or after time, or size if none is
+            int rowAtOrAfter(long time) {
+                int low = 0;
+                int high = size;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (times[mid] < time) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                return low;
+            }
+            
+            // Row nearest to time
+            int rowNearest(long time) {
+                int row = rowAtOrAfter(time);
+                if (row >= size) return size - 1;
+                return row > 0 && time - times[row - 1] < times[row] - time ? row - 1 : row;
+            }
+            
+            // Axes are compared as layer state: equal while they show the same rows
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Axis && ((Axis) o).times == times && ((Axis) o).size == size;
+            }
+            
+            @Override
+            public int hashCode() {
+                return System.identityHashCode(times) * 31 + size;
+            }
+        }
+    }
+    
+    // Command-line mode for servers without a display: loads each input with
+    // CsvLoader, applies the same aggregation, smoothing and derivative
+    // processing as the chart and writes the result as CSV. Files are
+    // processed concurrently on a fixed pool (each load also parses its
+    // chunks in parallel), one report line per file, totals on exit.
+    private static final class BatchRunner {
+        private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java CSVViewer.java [options] FILE...",
+            "  -c, --columns A,B,...    columns to process (default: every numeric column)",
+            "  -a, --aggregation SPEC   N for N-point averaging, lttb:N or minmax:N (default: none),",
+            "                           or FUNC:BUCKET to resample by the time column, e.g. mean:1m;",
+            "                           FUNC is mean, min, max, sum, count, first, last or stddev,",
+            "                           BUCKET a count followed by s, m, h or d",
+            "  -s, --smooth             apply a 3-point rolling mean, same as --smoothing mean:3",
+            "      --smoothing SPEC     mean:N or stddev:N for a centered rolling mean or standard",
+            "                           deviation over N points, or ewma:N for an exponentially",
+            "                           weighted moving average with span N (default: none)",
+            "  -d, --derivative         also write the derivative of each column",
+            "  -S, --summary            print count, min, max, mean, std dev and p50/p95/p99",
+            "                           of each column, from the statistics gathered while loading",
+            "  -o, --output PATH        output directory, or output file for a single input;",
+            "                           without it the files are processed but nothing is written",
+            "  -t, --threads N          files processed at once (default: number of processors)",
+            "      --write-cache        write a .colcache sidecar next to each input; by default",
+            "                           an up-to-date sidecar is read but none is written",
+            "Without arguments the dashboard opens.");
+        
+        private final List<File> inputs = new ArrayList<>();
+        private List<String> columns; // null for every column
+        private Aggregation aggregation = Aggregation.NONE;
+        private Smoothing smoothing = Smoothing.NONE;
+        private boolean derivative;
+        private boolean summary;
+        private boolean writeCache;
+        private File output;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        
+        // Outcome of one input file
+        private static final class Result {
+            private final File input;
+            private final long bytes;
+            private final long rows;
+            private final long nanos;
+            private final String error; // null on success
+            private final List<String> summary; // one line per column, empty unless requested
+            
+            Result(File input, long bytes, long rows, long nanos, String error, List<String> summary) {
+                this.input = input;
+                this.bytes = bytes;
+                this.rows = rows;
+                this.nanos = nanos;
+                this.error = error;
+                this.summary = summary;
+            }
+        }
+        
+        // Runs the batch and returns the process exit code: 0 on success,
+        // 1 if any file failed, 2 for invalid arguments
+        static int run(String[] args) {
+            BatchRunner runner = new BatchRunner();
+            try {
+                runner.parseArguments(args);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.err.println(USAGE);
+                return 2;
+            }
+            return runner.processAll();
+        }
+        
+        private void parseArguments(String[] args) {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-c":
+                    case "--columns":
+                        columns = Arrays.asList(value(args, ++i, arg).split(","));
+                        break;
+                    case "-a":
+                    case "--aggregation":
+                        aggregation = parseAggregation(value(args, ++i, arg));
+                        break;
+                    case "-s":
+                    case "--smooth":
+                        smoothing = Smoothing.DEFAULT;
+                        break;
+                    case "--smoothing":
+                        smoothing = parseSmoothing(value(args, ++i, arg), arg);
+                        break;
+                    case "-d":
+                    case "--derivative":
+                        derivative = true;
+                        break;
+                    case "-S":
+                    case "--summary":
+                        summary = true;
+                        break;
+                    case "--write-cache":
+                        writeCache = true;
+                        break;
+                    case "-o":
+                    case "--output":
+                        output = new File(value(args, ++i, arg));
+                        break;
+                    case "-t":
+                    case "--threads":
+                        threads = parsePositive(value(args, ++i, arg), arg);
+                        break;
+                    default:
+                        if (arg.startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option " + arg);
+                        }
+                        inputs.add(new File(arg));
+                }
+            }
+            if (inputs.isEmpty()) {
+                throw new IllegalArgumentException("No input files");
+            }
+            if (output != null && inputs.size() > 1 && output.isFile()) {
+                throw new IllegalArgumentException("Output must be a directory when there are several inputs");
+            }
+        }
+        
+        private static String value(String[] args, int index, String option) {
+            if (index >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            return args[index];
+        }
+        
+        private static int parsePositive(String text, String option) {
+            try {
+                int value = Integer.parseInt(text);
+                if (value > 0) return value;
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + text);
+        }
+        
+        private static Smoothing parseSmoothing(String spec, String option) {
+            Smoothing smoothing = Smoothing.parse(spec);
+            if (smoothing == null) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + spec);
+            }
+            return smoothing;
+        }
+        
+        private static Aggregation parseAggregation(String spec) {
+            String lower = spec.toLowerCase(Locale.ROOT);
+            int colon = lower.indexOf(':');
+            String mode = colon < 0 ? "avg" : lower.substring(0, colon);
+            for (Aggregator aggregator : Aggregator.values()) {
+                if (aggregator.name().toLowerCase(Locale.ROOT).equals(mode)) {
+                    long bucket = Aggregation.parseBucket(lower.substring(colon + 1));
+                    if (bucket < 0) {
+                        throw new IllegalArgumentException("Invalid time bucket in " + spec);
+                    }
+                    return new Aggregation(bucket, aggregator);
+                }
+            }
+            int size = parsePositive(lower.substring(colon + 1), "--aggregation");
+            switch (mode) {
+                case "avg": return new Aggregation(Aggregation.Mode.AVERAGE, size);
+                case "lttb": return new Aggregation(Aggregation.Mode.LTTB, size);
+                case "minmax": return new Aggregation(Aggregation.Mode.MIN_MAX, size);
+                default: throw new IllegalArgumentException("Unknown aggregation " + spec);
+            }
+        }
+        
+        private int processAll() {
+            if (output != null && (inputs.size() > 1 || output.isDirectory()) 
+                    && !output.isDirectory() && !output.mkdirs()) {
+                System.err.println("Error: cannot create output directory " + output);
+                return 1;
+            }
+            
+            long startTime = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, inputs.size()));
+            List<Future<Result>> results = new ArrayList<>();
+            for (File input : inputs) {
+                results.add(pool.submit(() -> process(input)));
+            }
+            pool.shutdown();
+            
+            long bytes = 0;
+            long rows = 0;
+            int failed = 0;
+            // Reported in input order as the files finish
+            for (Future<Result> future : results) {
+                Result result;
+                try {
+                    result = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pool.shutdownNow();
+                    return 1;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (result.error != null) {
+                    failed++;
+                    System.err.println(result.input + ": " + result.error);
+                } else {
+                    bytes += result.bytes;
+                    rows += result.rows;
+                    System.out.printf("%s: %,d rows, %s in %.1f ms%n", 
+                        result.input, result.rows, formatBytes(result.bytes), result.nanos / 1e6);
+                    result.summary.forEach(System.out::println);
+                }
+            }
+            
+            double seconds = Math.max((System.nanoTime() - startTime) / 1e9, 1e-9);
+            System.out.printf("Processed %d of %d files, %,d rows, %s in %.2f s (%s/s, %,d rows/s, %d threads)%n", 
+                inputs.size() - failed, inputs.size(), rows, formatBytes(bytes), seconds, 
+                formatBytes((long) (bytes / seconds)), (long) (rows / seconds), Math.min(threads, inputs.size()));
+            return failed > 0 ? 1 : 0;
+        }
+        
+        // Never throws: failures are reported in the result
+        private Result process(File input) {
+            long startTime = System.nanoTime();
+            try {
+                if (!input.isFile()) {
+                    throw new IOException("File not found");
+                }
+                CsvLoader loader = new CsvLoader(input);
+                if (!writeCache) {
+                    loader.setCacheReadOnly();
+                }
+                List<DoubleColumn> loaded = new ArrayList<>();
+                List<ColumnStats> stats = new ArrayList<>();
+                TimeIndex times = new TimeIndex();
+                long[] rows = new long[1];
+                loader.load(chunk -> {
+                    if (chunk.getTimes() != null) {
+                        times.addAll(chunk.getTimes());
+                    }
+                    DoubleColumn[] segment = chunk.getColumns();
+                    while (loaded.size() < segment.length) {
+                        loaded.add(new DoubleColumn());
+                        stats.add(new ColumnStats());
+                    }
+                    for (int i = 0; i < segment.length; i++) {
+                        loaded.get(i).addAll(segment[i]);
+                        stats.get(i).merge(chunk.getStats()[i]);
+                    }
+                    rows[0] += chunk.getRows();
+                });
+                
+                if (aggregation.isTimeBucket() && loader.getTimeColumn() == null) {
+                    throw new IOException("Resampling by time needs a time column");
+                }
+                
+                List<String> headers = new ArrayList<>();
+                List<DoubleColumn> processed = new ArrayList<>();
+                List<String> summaryLines = new ArrayList<>();
+                for (String name : selectColumns(loader.getColumnNames(), loader.getTimeColumn(), loaded)) {
+                    DoubleColumn values = loaded.get(loader.getColumnNames().indexOf(name));
+                    if (summary) {
+                        summaryLines.add(summarize(name, stats.get(loader.getColumnNames().indexOf(name))));
+                    }
+                    Series series = aggregate(values, aggregation, times);
+                    headers.add(name);
+                    processed.add(smoothing.apply(series).getValues());
+                    if (derivative) {
+                        Series slope = derivativeOf(values, series, aggregation, times);
+                        headers.add(name + " (derivative)");
+                        processed.add(smoothing.apply(slope).getValues());
+                    }
+                }
+                
+                // The time column leads the output while there is still a value
+                // per row, or per bucket with the bucket start times
+                TimeIndex outputTimes = aggregation.isTimeBucket() 
+                    ? Resampler.bucketStarts(times, aggregation.getBucketNanos()) : times;
+                boolean timed = loader.getTimeColumn() != null;
+                for (DoubleColumn column : processed) {
+                    timed &= column.size() == outputTimes.size();
+                }
+                if (timed) {
+                    headers.add(0, loader.getTimeColumn());
+                }
+                
+                File target = outputFor(input);
+                if (target != null) {
+                    CsvExporter.write(target, headers, timed ? outputTimes : null, 
+                        processed.toArray(new DoubleColumn[0]));
+                }
+                return new Result(input, loader.getFileSize(), rows[0], System.nanoTime() - startTime, null, 
+                    summaryLines);
+            } catch (IOException | RuntimeException e) {
+                return new Result(input, 0, 0, System.nanoTime() - startTime, 
+                    e.getMessage() != null ? e.getMessage() : e.toString(), Collections.emptyList());
+            }
+        }
+        
+        // One line of --summary output for the raw values of a column
+        private static String summarize(String name, ColumnStats stats) {
+            if (stats.count() == 0) {
+                return String.format(Locale.ROOT, "  %s: no values", name);
+            }
+            return String.format(Locale.ROOT, 
+                "  %s: count %d, min %.6g, max %.6g, mean %.6g, std dev %.6g, p50 %.6g, p95 %.6g, p99 %.6g", 
+                name, stats.count(), stats.min(), stats.max(), stats.mean(), Math.sqrt(stats.variance()), 
+                stats.quantile(0.50), stats.quantile(0.95), stats.quantile(0.99));
+        }
+        
+        // The requested columns, or every column that holds numeric data. The
+        // time column is written with the rows anyway, so naming it selects nothing.
+        private List<String> selectColumns(List<String> names, String timeColumn, 
+                                           List<DoubleColumn> loaded) throws IOException {
+            List<String> selected = new ArrayList<>();
+            if (columns != null) {
+                for (String name : columns) {
+                    if (name.trim().equals(timeColumn)) continue;
+                    int index = names.indexOf(name.trim());
+                    if (index < 0) {
+                        throw new IOException("No column named " + name.trim());
+                    }
+                    if (index >= loaded.size() || loaded.get(index).presentCount() == 0) {
+                        throw new IOException("No numeric data in column " + name.trim());
+                    }
+                    selected.add(name.trim());
+                }
+                return selected;
+            }
+            for (int i = 0; i < names.size(); i++) {
+                if (i < loaded.size() && loaded.get(i).presentCount() > 0) {
+                    selected.add(names.get(i));
+                }
+            }
+            if (selected.isEmpty()) {
+                throw new IOException("No numeric data found in CSV");
+            }
+            return selected;
+        }
+        
+        private File outputFor(File input) throws IOException {
+            if (output == null) return null;
+            File target = output.isDirectory() ? new File(output, input.getName()) : output;
+            if (target.getCanonicalFile().equals(input.getCanonicalFile())) {
+                throw new IOException("Output would overwrite the input file");
+            }
+            return target;
+        }
+    }
+    
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(BatchRunner.run(args));
+        }
         SwingUtilities.invokeLater(() -> {new CSVViewer().setVisible(true);});
     }
 }
\ No newline at end of file